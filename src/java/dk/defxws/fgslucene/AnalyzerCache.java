@@ -0,0 +1,232 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.KeywordAnalyzer;
+import org.apache.lucene.analysis.PerFieldAnalyzerWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.defxws.fedoragsearch.server.Config;
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+/**
+ * Singleton for caching the Analyzers of each index.
+ * 
+ * The configured Analyzer is instantiated once per index, the query
+ * Analyzer wrapping it with a KeywordAnalyzer for each untokenized field
+ * is rebuilt only when the untokenized fields of the index change. Lucene
+ * Analyzers keep their reusable TokenStreams per thread, so the cached
+ * instances are shared by all queries and writers.
+ * 
+ */
+public final class AnalyzerCache {
+
+	private static AnalyzerCache instance = null;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(AnalyzerCache.class);
+
+	/** Holds Analyzers for each index. */
+	private final ConcurrentMap<String, IndexAnalyzers> analyzers = new ConcurrentHashMap<String, IndexAnalyzers>();
+
+	/**
+	 * private Constructor for Singleton.
+	 * 
+	 */
+	private AnalyzerCache() {
+	}
+
+	/**
+	 * Only initialize Object once.
+	 * 
+	 * @return AnalyzerCache AnalyzerCache
+	 * 
+	 */
+	public static synchronized AnalyzerCache getInstance() {
+		if (instance == null) {
+			instance = new AnalyzerCache();
+		}
+		return instance;
+	}
+
+	/**
+	 * get configured Analyzer of given indexName.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param config
+	 *            gsearch config-Object.
+	 * @return Analyzer shared Analyzer.
+	 * @throws GenericSearchException
+	 *             e
+	 */
+	public Analyzer getAnalyzer(final String indexName, final Config config)
+			throws GenericSearchException {
+		return getIndexAnalyzers(indexName, config).analyzer;
+	}
+
+	/**
+	 * get query Analyzer of given indexName, which analyzes untokenized
+	 * fields with a KeywordAnalyzer.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param config
+	 *            gsearch config-Object.
+	 * @return Analyzer shared query Analyzer.
+	 * @throws GenericSearchException
+	 *             e
+	 */
+	public Analyzer getQueryAnalyzer(final String indexName,
+			final Config config) throws GenericSearchException {
+		return getIndexAnalyzers(indexName, config).queryAnalyzer;
+	}
+
+	/**
+	 * get a key of given Analyzer which stays the same while the Analyzers
+	 * of indexName are not rebuilt, for result cache keys.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param analyzer
+	 *            Analyzer got from this cache.
+	 * @return String analyzer class name and untokenized fields, null if
+	 *         analyzer is not a current Analyzer of indexName.
+	 */
+	public String getCacheKey(final String indexName, final Analyzer analyzer) {
+		IndexAnalyzers current = analyzers.get(indexName);
+		if (current == null) {
+			return null;
+		}
+		if (analyzer == current.queryAnalyzer) {
+			return current.analyzerClassName + " query "
+					+ current.untokenizedFields;
+		}
+		if (analyzer == current.analyzer) {
+			return current.analyzerClassName;
+		}
+		return null;
+	}
+
+	private IndexAnalyzers getIndexAnalyzers(final String indexName,
+			final Config config) throws GenericSearchException {
+		String analyzerClassName = config.getAnalyzer(indexName);
+		String untokenizedFields = UntokenizedFieldRegistry.getInstance()
+				.getFields(indexName, config);
+		IndexAnalyzers current = analyzers.get(indexName);
+		if (current != null
+				&& current.analyzerClassName.equals(analyzerClassName)
+				&& current.untokenizedFields.equals(untokenizedFields)) {
+			return current;
+		}
+		Analyzer analyzer;
+		if (current != null
+				&& current.analyzerClassName.equals(analyzerClassName)) {
+			analyzer = current.analyzer;
+		} else {
+			analyzer = newAnalyzer(analyzerClassName);
+		}
+		IndexAnalyzers rebuilt = new IndexAnalyzers(analyzerClassName,
+				untokenizedFields, analyzer);
+		analyzers.put(indexName, rebuilt);
+		if (logger.isDebugEnabled())
+			logger.debug("getQueryAnalyzer rebuilt indexName=" + indexName
+					+ " untokenizedFields=" + untokenizedFields);
+		return rebuilt;
+	}
+
+	/**
+	 * get new Analyzer Object from ClassName.
+	 * 
+	 * @param analyzerClassName
+	 *            name of Analyzer-class.
+	 * @return Analyzer new Analyzer.
+	 * @throws GenericSearchException
+	 *             e
+	 */
+	public static Analyzer newAnalyzer(final String analyzerClassName)
+			throws GenericSearchException {
+		Analyzer analyzer = null;
+		if (logger.isDebugEnabled())
+			logger.debug("analyzerClassName=" + analyzerClassName);
+		try {
+			Class analyzerClass = Class.forName(analyzerClassName);
+			if (logger.isDebugEnabled())
+				logger.debug("analyzerClass=" + analyzerClass.toString());
+			analyzer = (Analyzer) analyzerClass.getConstructor(new Class[] {})
+					.newInstance(new Object[] {});
+			if (logger.isDebugEnabled())
+				logger.debug("analyzer=" + analyzer.toString());
+		} catch (ClassNotFoundException e) {
+			throw new GenericSearchException(analyzerClassName
+					+ ": class not found.\n", e);
+		} catch (Exception e) {
+			throw new GenericSearchException(analyzerClassName
+					+ ": instantiation error.\n", e);
+		}
+		return analyzer;
+	}
+
+	/**
+	 * Analyzers of one index, built for one set of untokenized fields.
+	 * 
+	 */
+	private static final class IndexAnalyzers {
+
+		private final String analyzerClassName;
+
+		private final String untokenizedFields;
+
+		private final Analyzer analyzer;
+
+		private final Analyzer queryAnalyzer;
+
+		private IndexAnalyzers(final String analyzerClassName,
+				final String untokenizedFields, final Analyzer analyzer) {
+			this.analyzerClassName = analyzerClassName;
+			this.untokenizedFields = untokenizedFields;
+			this.analyzer = analyzer;
+			PerFieldAnalyzerWrapper pfanalyzer = new PerFieldAnalyzerWrapper(
+					analyzer);
+			KeywordAnalyzer keywordAnalyzer = new KeywordAnalyzer();
+			StringTokenizer fields = new StringTokenizer(untokenizedFields);
+			while (fields.hasMoreTokens()) {
+				pfanalyzer.addAnalyzer(fields.nextToken(), keywordAnalyzer);
+			}
+			this.queryAnalyzer = pfanalyzer;
+		}
+	}
+
+}
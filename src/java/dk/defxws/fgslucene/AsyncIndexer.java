@@ -0,0 +1,583 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+/**
+ * Singleton for the asynchronous updateIndex actions fromPidAsync and
+ * deletePidAsync.
+ * 
+ * Requests are appended to the {@link IndexJournal} of the index and
+ * return at once. journal.workers background threads per index, each with
+ * its own OperationsImpl, drain them through the {@link IndexWriterCache};
+ * the entries of one PID always go to the same worker, so they are applied
+ * in order. Every journal.ackInterval milliseconds the index is committed
+ * and the journal acknowledged up to the last entry before which all are
+ * done. An entry is done when the commit covering its write succeeded, or
+ * when a later entry of the same PID supersedes it. A failed entry is
+ * retried up to journal.maxRetries times, waiting journal.retryBackoff
+ * milliseconds, doubled for every retry up to journal.retryBackoffMax,
+ * and then moved to the dead letter file of the journal. Unacknowledged
+ * entries are replayed when the journal is opened, which is on the first
+ * asynchronous action or status request of the index.
+ * 
+ */
+public final class AsyncIndexer {
+
+	public static final String FROM_PID = "fromPid";
+
+	public static final String DELETE_PID = "deletePid";
+
+	private static AsyncIndexer instance = null;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(AsyncIndexer.class);
+
+	/** Holds the journal and workers of each index. */
+	private final ConcurrentMap<String, IndexQueue> queues = new ConcurrentHashMap<String, IndexQueue>();
+
+	/** commits, acknowledges and schedules retries. */
+	private final ScheduledExecutorService ackExecutor;
+
+	/**
+	 * private Constructor for Singleton.
+	 * 
+	 */
+	private AsyncIndexer() {
+		ackExecutor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					public Thread newThread(final Runnable r) {
+						Thread thread = new Thread(r, "fgslucene-journal-ack");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Only initialize Object once.
+	 * 
+	 * @return AsyncIndexer AsyncIndexer
+	 * 
+	 */
+	public static synchronized AsyncIndexer getInstance() {
+		if (instance == null) {
+			instance = new AsyncIndexer();
+		}
+		return instance;
+	}
+
+	/**
+	 * journal the given PIDs for asynchronous indexing.
+	 * 
+	 * @param owner
+	 *            OperationsImpl of the caller, workers are created from it.
+	 * @param action
+	 *            FROM_PID or DELETE_PID.
+	 * @return long[] first and last sequence number of the journaled
+	 *         entries.
+	 * @throws GenericSearchException
+	 *             if the journal can not be written.
+	 */
+	public long[] submit(final OperationsImpl owner, final String indexName,
+			final String action, final List<String> pids,
+			final String repositoryName, final String indexDocXslt)
+			throws GenericSearchException {
+		IndexQueue queue = getQueue(owner, indexName);
+		long[] seqs = new long[] { 0, 0 };
+		if (pids.isEmpty()) {
+			return seqs;
+		}
+		List<IndexJournal.Entry> entries;
+		try {
+			// journal order and pending order must agree for the ack,
+			// the whole batch is forced to disk once
+			synchronized (queue) {
+				entries = queue.journal.append(action, pids, repositoryName,
+						indexDocXslt);
+				for (IndexJournal.Entry entry : entries) {
+					queue.pending.put(Long.valueOf(entry.getSeq()), Long
+							.valueOf(entry.getTime()));
+				}
+			}
+		} catch (IOException e) {
+			throw new GenericSearchException("updateIndex journal error indexName="
+					+ indexName, e);
+		}
+		for (IndexJournal.Entry entry : entries) {
+			queue.enqueue(entry);
+		}
+		seqs[0] = entries.get(0).getSeq();
+		seqs[1] = entries.get(entries.size() - 1).getSeq();
+		return seqs;
+	}
+
+	/**
+	 * get queue depth and lag of the asynchronous actions of given index.
+	 * 
+	 * @return String asyncStatus element.
+	 * @throws GenericSearchException
+	 *             if the journal can not be opened.
+	 */
+	public String getStatus(final OperationsImpl owner, final String indexName)
+			throws GenericSearchException {
+		IndexQueue queue = getQueue(owner, indexName);
+		long lag = 0;
+		int depth;
+		synchronized (queue) {
+			depth = queue.pending.size();
+			if (depth > 0) {
+				lag = System.currentTimeMillis()
+						- queue.pending.firstEntry().getValue().longValue();
+			}
+		}
+		return "<asyncStatus indexName=\"" + indexName + "\" queueDepth=\""
+				+ depth + "\" lagMillis=\"" + lag + "\" lastSeq=\""
+				+ queue.journal.getLastSeq() + "\" ackSeq=\""
+				+ queue.journal.getAckSeq() + "\" segments=\""
+				+ queue.journal.getSegmentCount() + "\" completed=\""
+				+ queue.completed.get() + "\" retried=\"" + queue.retried.get()
+				+ "\" failed=\"" + queue.failed.get() + "\"/>\n";
+	}
+
+	private IndexQueue getQueue(final OperationsImpl owner,
+			final String indexName) throws GenericSearchException {
+		IndexQueue queue = queues.get(indexName);
+		if (queue != null) {
+			return queue;
+		}
+		synchronized (this) {
+			queue = queues.get(indexName);
+			if (queue != null) {
+				return queue;
+			}
+			String dirName = IndexSettings.getString(indexName, "journal.dir",
+					null);
+			File dir = dirName == null ? new File(owner.getIndexDir(indexName)
+					+ "-journal") : new File(dirName);
+			IndexJournal journal = new IndexJournal(dir, IndexSettings.getLong(
+					indexName, "journal.segmentMb", 16) * 1024 * 1024,
+					IndexSettings.getBoolean(indexName, "journal.sync", true));
+			List<IndexJournal.Entry> replay;
+			try {
+				replay = journal.open();
+			} catch (IOException e) {
+				throw new GenericSearchException(
+						"updateIndex journal open error indexName=" + indexName,
+						e);
+			}
+			queue = new IndexQueue(owner, indexName, journal, ackExecutor);
+			for (IndexJournal.Entry entry : replay) {
+				queue.pending.put(Long.valueOf(entry.getSeq()), Long
+						.valueOf(entry.getTime()));
+				queue.enqueue(entry);
+			}
+			if (replay.size() > 0) {
+				logger.info("updateIndex journal indexName=" + indexName
+						+ " replaying " + replay.size() + " entries");
+			}
+			long ackInterval = Math.max(100, IndexSettings.getLong(
+					indexName, "journal.ackInterval", 1000));
+			ackExecutor.scheduleWithFixedDelay(new Acknowledger(queue),
+					ackInterval, ackInterval, TimeUnit.MILLISECONDS);
+			queues.put(indexName, queue);
+			return queue;
+		}
+	}
+
+	/**
+	 * Journal, partitions and workers of one index.
+	 * 
+	 */
+	private static final class IndexQueue {
+
+		private final String indexName;
+
+		private final IndexJournal journal;
+
+		private final ScheduledExecutorService retryExecutor;
+
+		private final int maxRetries;
+
+		private final long retryBackoff;
+
+		private final long retryBackoffMax;
+
+		/** sequence number and time of entries not done yet. */
+		private final TreeMap<Long, Long> pending = new TreeMap<Long, Long>();
+
+		/** written entries waiting for their commit, with its ticket. */
+		private final Map<IndexJournal.Entry, Future<Void>> written = new LinkedHashMap<IndexJournal.Entry, Future<Void>>();
+
+		/** number of failed attempts of retried entries. */
+		private final ConcurrentMap<Long, Integer> attempts = new ConcurrentHashMap<Long, Integer>();
+
+		/** order of the entries of each PID not done yet. */
+		private final PidOrder pidOrder = new PidOrder();
+
+		private final List<BlockingQueue<IndexJournal.Entry>> partitions;
+
+		private final AtomicLong completed = new AtomicLong();
+
+		private final AtomicLong retried = new AtomicLong();
+
+		private final AtomicLong failed = new AtomicLong();
+
+		private IndexQueue(OperationsImpl owner, final String indexName,
+				IndexJournal journal, ScheduledExecutorService retryExecutor) {
+			this.indexName = indexName;
+			this.journal = journal;
+			this.retryExecutor = retryExecutor;
+			maxRetries = Math.max(0, IndexSettings.getInt(indexName,
+					"journal.maxRetries", 5));
+			retryBackoff = Math.max(1, IndexSettings.getLong(indexName,
+					"journal.retryBackoff", 1000));
+			retryBackoffMax = Math.max(retryBackoff, IndexSettings.getLong(
+					indexName, "journal.retryBackoffMax", 60000));
+			int workers = Math.max(1, IndexSettings.getInt(indexName,
+					"journal.workers", 2));
+			partitions = new ArrayList<BlockingQueue<IndexJournal.Entry>>(
+					workers);
+			final AtomicInteger count = new AtomicInteger();
+			for (int i = 0; i < workers; i++) {
+				BlockingQueue<IndexJournal.Entry> partition = new LinkedBlockingQueue<IndexJournal.Entry>();
+				partitions.add(partition);
+				Thread thread = new Thread(new Worker(this, owner.newWorker(),
+						partition), "fgslucene-journal-" + indexName + "-"
+						+ count.incrementAndGet());
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		/**
+		 * enqueue a new entry, it supersedes the earlier entries of its PID.
+		 */
+		private void enqueue(IndexJournal.Entry entry) {
+			pidOrder.enqueued(entry);
+			partition(entry).add(entry);
+		}
+
+		private BlockingQueue<IndexJournal.Entry> partition(
+				IndexJournal.Entry entry) {
+			int partition = (entry.getPid().hashCode() & 0x7fffffff)
+					% partitions.size();
+			return partitions.get(partition);
+		}
+
+		/**
+		 * the write of entry waits for the commit of ticket.
+		 */
+		private void written(IndexJournal.Entry entry, Future<Void> ticket) {
+			if (ticket == null) {
+				// nothing was written
+				done(entry);
+				return;
+			}
+			synchronized (this) {
+				written.put(entry, ticket);
+			}
+		}
+
+		/**
+		 * mark the entries whose commit is done as done, retry those whose
+		 * commit failed.
+		 */
+		private void checkWritten() {
+			List<IndexJournal.Entry> committed = new ArrayList<IndexJournal.Entry>();
+			Map<IndexJournal.Entry, Throwable> lost = new LinkedHashMap<IndexJournal.Entry, Throwable>();
+			synchronized (this) {
+				Iterator<Map.Entry<IndexJournal.Entry, Future<Void>>> iter = written
+						.entrySet().iterator();
+				while (iter.hasNext()) {
+					Map.Entry<IndexJournal.Entry, Future<Void>> w = iter.next();
+					if (!w.getValue().isDone()) {
+						continue;
+					}
+					iter.remove();
+					try {
+						w.getValue().get();
+						committed.add(w.getKey());
+					} catch (ExecutionException e) {
+						lost.put(w.getKey(), e.getCause());
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						lost.put(w.getKey(), e);
+					}
+				}
+			}
+			for (IndexJournal.Entry entry : committed) {
+				done(entry);
+			}
+			for (Map.Entry<IndexJournal.Entry, Throwable> l : lost.entrySet()) {
+				failed(l.getKey(), l.getValue());
+			}
+		}
+
+		/**
+		 * retry a failed entry after a backoff, or move it to the dead
+		 * letter file when it failed too often.
+		 */
+		private void failed(final IndexJournal.Entry entry, Throwable error) {
+			Long seq = Long.valueOf(entry.getSeq());
+			Integer previous = attempts.get(seq);
+			int attempt = previous == null ? 1 : previous.intValue() + 1;
+			if (attempt <= maxRetries) {
+				attempts.put(seq, Integer.valueOf(attempt));
+				retried.incrementAndGet();
+				long backoff = Math.min(retryBackoffMax, retryBackoff
+						<< Math.min(attempt - 1, 30));
+				logger.warn("updateIndex journal indexName=" + indexName
+						+ " seq=" + entry.getSeq() + " " + entry.getAction()
+						+ " pid=" + entry.getPid() + " retry " + attempt
+						+ " in " + backoff + " ms exception=" + error);
+				retryExecutor.schedule(new Runnable() {
+					public void run() {
+						partition(entry).add(entry);
+					}
+				}, backoff, TimeUnit.MILLISECONDS);
+				return;
+			}
+			logger.error("updateIndex journal indexName=" + indexName
+					+ " seq=" + entry.getSeq() + " " + entry.getAction()
+					+ " pid=" + entry.getPid() + " failed " + attempt
+					+ " times, moved to dead letter file exception=" + error);
+			try {
+				journal.deadLetter(entry);
+			} catch (IOException e) {
+				// not acknowledged, the entry is replayed on the next open
+				logger.error("updateIndex journal dead letter error indexName="
+						+ indexName + " seq=" + entry.getSeq(), e);
+				return;
+			}
+			failed.incrementAndGet();
+			remove(entry);
+		}
+
+		private void done(IndexJournal.Entry entry) {
+			completed.incrementAndGet();
+			remove(entry);
+		}
+
+		private void remove(IndexJournal.Entry entry) {
+			Long seq = Long.valueOf(entry.getSeq());
+			attempts.remove(seq);
+			pidOrder.removed(entry);
+			synchronized (this) {
+				pending.remove(seq);
+			}
+		}
+
+		/**
+		 * get the sequence number up to which all entries are done.
+		 */
+		private synchronized long getDoneSeq() {
+			if (pending.isEmpty()) {
+				return journal.getLastSeq();
+			}
+			return pending.firstKey().longValue() - 1;
+		}
+	}
+
+	/**
+	 * Sequence number of the last entry and number of entries not done yet
+	 * of each PID. The last sequence number is kept until all entries of
+	 * the PID are done, so an entry retried after a later one of its PID
+	 * was applied is recognized as superseded.
+	 * 
+	 */
+	static final class PidOrder {
+
+		private final Map<String, PidState> pids = new HashMap<String, PidState>();
+
+		/**
+		 * count a new entry, it supersedes the earlier entries of its PID.
+		 */
+		synchronized void enqueued(IndexJournal.Entry entry) {
+			PidState state = pids.get(entry.getPid());
+			if (state == null) {
+				state = new PidState();
+				pids.put(entry.getPid(), state);
+			}
+			state.lastSeq = Math.max(state.lastSeq, entry.getSeq());
+			state.pending++;
+		}
+
+		/**
+		 * @return boolean whether a later entry of the same PID was
+		 *         enqueued, which makes this entry needless.
+		 */
+		synchronized boolean isSuperseded(IndexJournal.Entry entry) {
+			PidState state = pids.get(entry.getPid());
+			return state != null && state.lastSeq > entry.getSeq();
+		}
+
+		/**
+		 * count an entry as done.
+		 */
+		synchronized void removed(IndexJournal.Entry entry) {
+			PidState state = pids.get(entry.getPid());
+			if (state != null && --state.pending <= 0) {
+				pids.remove(entry.getPid());
+			}
+		}
+
+		/**
+		 * @return int number of PIDs with entries not done.
+		 */
+		synchronized int size() {
+			return pids.size();
+		}
+
+		private static final class PidState {
+
+			private long lastSeq;
+
+			private int pending;
+		}
+	}
+
+	/**
+	 * Drains one partition of an index.
+	 * 
+	 */
+	private static final class Worker implements Runnable {
+
+		private final IndexQueue queue;
+
+		private final OperationsImpl worker;
+
+		private final BlockingQueue<IndexJournal.Entry> partition;
+
+		private Worker(IndexQueue queue, OperationsImpl worker,
+				BlockingQueue<IndexJournal.Entry> partition) {
+			this.queue = queue;
+			this.worker = worker;
+			this.partition = partition;
+		}
+
+		public void run() {
+			while (true) {
+				IndexJournal.Entry entry;
+				try {
+					entry = partition.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (queue.pidOrder.isSuperseded(entry)) {
+					queue.done(entry);
+					continue;
+				}
+				Future<Void> ticket;
+				try {
+					if (DELETE_PID.equals(entry.getAction())) {
+						ticket = worker.deleteDoc(entry.getPid(),
+								queue.indexName);
+					} else {
+						ticket = worker.indexPid(entry.getPid(), entry
+								.getRepositoryName(), queue.indexName, entry
+								.getIndexDocXslt());
+					}
+				} catch (Throwable e) {
+					queue.failed(entry, e);
+					continue;
+				}
+				queue.written(entry, ticket);
+			}
+		}
+	}
+
+	/**
+	 * Commits the index and acknowledges the done entries.
+	 * 
+	 */
+	private static final class Acknowledger implements Runnable {
+
+		private final IndexQueue queue;
+
+		private Acknowledger(IndexQueue queue) {
+			this.queue = queue;
+		}
+
+		public void run() {
+			try {
+				boolean waiting;
+				synchronized (queue) {
+					waiting = !queue.written.isEmpty();
+				}
+				if (waiting) {
+					try {
+						CommitScheduler.awaitCommit(queue.indexName,
+								CommitScheduler.getInstance().commitAsync(
+										queue.indexName));
+					} catch (GenericSearchException e) {
+						// the tickets of the lost writes tell which to retry
+						logger.warn("updateIndex journal commit error indexName="
+								+ queue.indexName + " " + e.toString());
+					}
+				}
+				queue.checkWritten();
+				long doneSeq = queue.getDoneSeq();
+				if (doneSeq > queue.journal.getAckSeq()) {
+					queue.journal.acknowledge(doneSeq);
+				}
+			} catch (Throwable e) {
+				logger.error("updateIndex journal ack error indexName="
+						+ queue.indexName, e);
+			}
+		}
+	}
+
+}
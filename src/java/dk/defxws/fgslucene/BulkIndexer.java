@@ -0,0 +1,420 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.document.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+/**
+ * Indexes a directory of foxml files in a pipeline of three stages connected
+ * by bounded queues: directory walkers, transform/parse workers and writers
+ * feeding the {@link IndexWriterCache}. The thread counts are the settings
+ * bulk.walkerThreads, bulk.transformThreads and bulk.writerThreads, the queue
+ * capacity is bulk.queueSize (see {@link IndexSettings}). Progress of each
+ * stage is logged every bulk.progressInterval milliseconds.
+ * 
+ */
+public class BulkIndexer {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(BulkIndexer.class);
+
+	/** marks the end of a queue. */
+	private static final Item END = new Item(null);
+
+	private final OperationsImpl owner;
+
+	private final String repositoryName;
+
+	private final String indexName;
+
+	private final String indexDocXslt;
+
+	private final StringBuffer resultXml;
+
+	private final int walkerThreads;
+
+	private final int transformThreads;
+
+	private final int writerThreads;
+
+	private final long progressInterval;
+
+	private final BlockingQueue<File> dirQueue = new LinkedBlockingQueue<File>();
+
+	private final AtomicInteger pendingDirs = new AtomicInteger();
+
+	private final BlockingQueue<Item> fileQueue;
+
+	private final BlockingQueue<Item> docQueue;
+
+	private final AtomicLong walked = new AtomicLong();
+
+	private final AtomicLong transformed = new AtomicLong();
+
+	private final AtomicLong written = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	private ExecutorService pool;
+
+	public BulkIndexer(OperationsImpl owner, String repositoryName,
+			String indexName, String indexDocXslt, StringBuffer resultXml) {
+		this.owner = owner;
+		this.repositoryName = repositoryName;
+		this.indexName = indexName;
+		this.indexDocXslt = indexDocXslt;
+		this.resultXml = resultXml;
+		int processors = Runtime.getRuntime().availableProcessors();
+		walkerThreads = Math.max(1, IndexSettings.getInt(indexName,
+				"bulk.walkerThreads", 1));
+		transformThreads = Math.max(1, IndexSettings.getInt(indexName,
+				"bulk.transformThreads", processors));
+		writerThreads = Math.max(1, IndexSettings.getInt(indexName,
+				"bulk.writerThreads", 1));
+		progressInterval = Math.max(1000, IndexSettings.getLong(indexName,
+				"bulk.progressInterval", 10000));
+		int queueSize = Math.max(1, IndexSettings.getInt(indexName,
+				"bulk.queueSize", 1000));
+		fileQueue = new LinkedBlockingQueue<Item>(queueSize);
+		docQueue = new LinkedBlockingQueue<Item>(queueSize);
+	}
+
+	/**
+	 * index all foxml files below objectDir and wait for the last write.
+	 * 
+	 * @param objectDir
+	 *            directory or single foxml file.
+	 * @throws GenericSearchException
+	 *             if a stage failed, failures of single files are warnings.
+	 */
+	public void run(File objectDir) throws GenericSearchException {
+		pool = Executors.newFixedThreadPool(walkerThreads
+				+ transformThreads + writerThreads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(r, "fgslucene-bulk-" + indexName
+						+ "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long time = System.currentTimeMillis();
+		try {
+			if (objectDir.isHidden()) {
+				return;
+			}
+			if (objectDir.isDirectory()) {
+				pendingDirs.incrementAndGet();
+				dirQueue.add(objectDir);
+			}
+			List<Future<Object>> walkers = new ArrayList<Future<Object>>();
+			for (int i = 0; i < walkerThreads; i++) {
+				walkers.add(pool.submit(new Walker()));
+			}
+			List<Future<Object>> transformers = new ArrayList<Future<Object>>();
+			for (int i = 0; i < transformThreads; i++) {
+				transformers.add(pool.submit(new Transformer(owner
+						.newWorker())));
+			}
+			List<Future<Object>> writers = new ArrayList<Future<Object>>();
+			for (int i = 0; i < writerThreads; i++) {
+				writers.add(pool.submit(new Writer()));
+			}
+			if (!objectDir.isDirectory()) {
+				walked.incrementAndGet();
+				fileQueue.put(new Item(objectDir));
+			}
+			await(walkers);
+			for (int i = 0; i < transformThreads; i++) {
+				putEnd(fileQueue, transformers);
+			}
+			await(transformers);
+			for (int i = 0; i < writerThreads; i++) {
+				putEnd(docQueue, writers);
+			}
+			await(writers);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new GenericSearchException("updateIndex bulk interrupted indexName="
+					+ indexName, e);
+		} finally {
+			pool.shutdownNow();
+			logProgress();
+			resultXml.append("<bulkProgress walked=\"" + walked.get()
+					+ "\" transformed=\"" + transformed.get()
+					+ "\" written=\"" + written.get() + "\" failed=\""
+					+ failed.get() + "\" millis=\""
+					+ (System.currentTimeMillis() - time) + "\"/>\n");
+		}
+	}
+
+	/**
+	 * wait for the tasks of one stage, logging the progress meanwhile.
+	 */
+	private void await(List<Future<Object>> stage)
+			throws GenericSearchException, InterruptedException {
+		for (Future<Object> task : stage) {
+			while (true) {
+				try {
+					task.get(progressInterval, TimeUnit.MILLISECONDS);
+					break;
+				} catch (TimeoutException e) {
+					logProgress();
+				} catch (ExecutionException e) {
+					throw new GenericSearchException(
+							"updateIndex bulk error indexName=" + indexName,
+							e.getCause());
+				}
+			}
+		}
+	}
+
+	/**
+	 * put END to the queue of a stage, without blocking forever if the
+	 * stage failed and no longer drains its full queue.
+	 */
+	private void putEnd(BlockingQueue<Item> queue, List<Future<Object>> stage)
+			throws GenericSearchException, InterruptedException {
+		long lastLog = System.currentTimeMillis();
+		while (!queue.offer(END, 100, TimeUnit.MILLISECONDS)) {
+			for (Future<Object> task : stage) {
+				if (task.isDone()) {
+					// a task stops before END only if it failed
+					try {
+						task.get();
+					} catch (ExecutionException e) {
+						throw new GenericSearchException(
+								"updateIndex bulk error indexName=" + indexName,
+								e.getCause());
+					}
+				}
+			}
+			if (pool.isShutdown()) {
+				throw new GenericSearchException(
+						"updateIndex bulk stopped indexName=" + indexName);
+			}
+			if (System.currentTimeMillis() - lastLog >= progressInterval) {
+				logProgress();
+				lastLog = System.currentTimeMillis();
+			}
+		}
+	}
+
+	private void logProgress() {
+		logger.info("updateIndex bulk indexName=" + indexName + " walked="
+				+ walked.get() + " fileQueue=" + fileQueue.size()
+				+ " transformed=" + transformed.get() + " docQueue="
+				+ docQueue.size() + " written=" + written.get() + " failed="
+				+ failed.get());
+	}
+
+	/**
+	 * A foxml file and, after the transform stage, its Lucene document.
+	 * 
+	 */
+	private static final class Item {
+
+		private final File file;
+
+		private String pid;
+
+		private Document indexDocument;
+
+		private Item(File file) {
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Task of one stage. A failing task stops the whole pipeline, so no
+	 * stage blocks forever on a queue no one drains.
+	 * 
+	 */
+	private abstract class Stage implements Callable<Object> {
+
+		public final Object call() throws Exception {
+			try {
+				process();
+				return null;
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Throwable e) {
+				logger.error("updateIndex bulk stage error indexName="
+						+ indexName, e);
+				pool.shutdownNow();
+				if (e instanceof Exception) {
+					throw (Exception) e;
+				}
+				throw (Error) e;
+			}
+		}
+
+		protected abstract void process() throws Exception;
+	}
+
+	/**
+	 * Lists directories, puts the foxml files to the file queue.
+	 * 
+	 */
+	private final class Walker extends Stage {
+
+		protected void process() throws Exception {
+			while (true) {
+				File dir = dirQueue.poll(100, TimeUnit.MILLISECONDS);
+				if (dir == null) {
+					if (pendingDirs.get() == 0) {
+						return;
+					}
+					continue;
+				}
+				try {
+					String[] files = dir.list();
+					if (files == null) {
+						continue;
+					}
+					for (int i = 0; i < files.length; i++) {
+						File file = new File(dir, files[i]);
+						if (file.isHidden()) {
+							continue;
+						}
+						if (file.isDirectory()) {
+							pendingDirs.incrementAndGet();
+							dirQueue.add(file);
+						} else {
+							walked.incrementAndGet();
+							fileQueue.put(new Item(file));
+						}
+					}
+				} finally {
+					pendingDirs.decrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Transforms foxml files and parses the IndexDocuments, with its own
+	 * OperationsImpl for fetching datastreams.
+	 * 
+	 */
+	private final class Transformer extends Stage {
+
+		private final OperationsImpl worker;
+
+		private Transformer(OperationsImpl worker) {
+			this.worker = worker;
+		}
+
+		protected void process() throws Exception {
+			while (true) {
+				Item item = fileQueue.take();
+				if (item == END) {
+					return;
+				}
+				InputStream foxmlStream = null;
+				try {
+					foxmlStream = new FileInputStream(item.file);
+					IndexDocumentHandler hdlr = worker.transformDoc(item.file
+							.getName(), repositoryName, indexName, foxmlStream,
+							indexDocXslt);
+					// the handler is reused for the next file of this worker
+					item.pid = hdlr.getPid();
+					item.indexDocument = hdlr.getIndexDocument();
+					transformed.incrementAndGet();
+					docQueue.put(item);
+				} catch (RemoteException e) {
+					failed.incrementAndGet();
+					owner.warnFile(resultXml, item.file, e);
+				} catch (FileNotFoundException e) {
+					failed.incrementAndGet();
+					owner.warnFile(resultXml, item.file, e);
+				} finally {
+					if (foxmlStream != null) {
+						try {
+							foxmlStream.close();
+						} catch (IOException e) {
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the Lucene documents without commit.
+	 * 
+	 */
+	private final class Writer extends Stage {
+
+		protected void process() throws Exception {
+			while (true) {
+				Item item = docQueue.take();
+				if (item == END) {
+					return;
+				}
+				try {
+					owner.writeDoc(item.pid, item.indexDocument, item.file
+							.getName(),
+							repositoryName, indexName, resultXml, false);
+					written.incrementAndGet();
+				} catch (RemoteException e) {
+					failed.incrementAndGet();
+					owner.warnFile(resultXml, item.file, e);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,408 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+/**
+ * Singleton for coalescing the commits of the IndexWriters (group commit).
+ * 
+ * Every write registers at the pending commit of its index and gets it as
+ * ticket. All writes registered before a commit starts share its ticket, so
+ * concurrent callers waiting for durability are served by one commit. Writes
+ * without commit are committed in the background when commit.maxDocs writes
+ * are pending or the first pending write is older than commit.maxLatency
+ * milliseconds (see {@link IndexSettings}). If both are 0 the index is only
+ * committed on request.
+ * 
+ * Writes must be registered while the IndexWriter they went to is locked.
+ * If the IndexWriter is discarded after a fatal error, its buffered writes
+ * are lost, and every ticket covering them fails instead of reporting them
+ * as durable.
+ * 
+ */
+public final class CommitScheduler {
+
+	private static CommitScheduler instance = null;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(CommitScheduler.class);
+
+	/** default for commit.maxDocs. */
+	private static final int DEFAULT_MAX_DOCS = 1000;
+
+	/** default for commit.maxLatency in milliseconds. */
+	private static final long DEFAULT_MAX_LATENCY = 1000;
+
+	/** Holds the pending commit for each index. */
+	private final ConcurrentMap<String, PendingCommit> pendingCommits = new ConcurrentHashMap<String, PendingCommit>();
+
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * private Constructor for Singleton.
+	 * 
+	 */
+	private CommitScheduler() {
+		executor = new ScheduledThreadPoolExecutor(2, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(r, "fgslucene-commit-"
+						+ count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Only initialize Object once.
+	 * 
+	 * @return CommitScheduler CommitScheduler
+	 * 
+	 */
+	public static synchronized CommitScheduler getInstance() {
+		if (instance == null) {
+			instance = new CommitScheduler();
+		}
+		return instance;
+	}
+
+	/**
+	 * register a write to the index with given indexName, called while the
+	 * IndexWriter is locked.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @return Future ticket of the commit which makes the write durable.
+	 */
+	public Future<Void> register(final String indexName) {
+		return getPendingCommit(indexName).register();
+	}
+
+	/**
+	 * commit at once and wait for the commit of given ticket.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param ticket
+	 *            ticket returned by {@link #register(String)}.
+	 * @throws GenericSearchException
+	 *             if the commit failed.
+	 */
+	public void commit(final String indexName, final Future<Void> ticket)
+			throws GenericSearchException {
+		if (ticket instanceof Runnable) {
+			((Runnable) ticket).run();
+		}
+		awaitCommit(indexName, ticket);
+	}
+
+	/**
+	 * commit the pending writes of given indexName at once.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @return Future ticket of the commit.
+	 */
+	public Future<Void> commitAsync(final String indexName) {
+		Ticket ticket = getPendingCommit(indexName).getTicket();
+		executor.execute(ticket);
+		return ticket;
+	}
+
+	/**
+	 * check if given indexName is only committed on request, because
+	 * commit.maxDocs and commit.maxLatency are both 0.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @return boolean true if there are no background commits.
+	 */
+	public boolean isCommitOnRequest(final String indexName) {
+		PendingCommit pendingCommit = getPendingCommit(indexName);
+		return pendingCommit.maxDocs <= 0 && pendingCommit.maxLatency <= 0;
+	}
+
+	/**
+	 * forget the pending writes of given indexName when its IndexWriter is
+	 * removed, called while the IndexWriter is locked exclusively.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param failure
+	 *            null if closing the IndexWriter made the writes durable,
+	 *            else the error which made them lost. The tickets of the
+	 *            writes, also of commits which did not start yet, then fail
+	 *            with it.
+	 */
+	public void discard(final String indexName, final Throwable failure) {
+		PendingCommit pendingCommit = getPendingCommit(indexName);
+		Ticket discarded = pendingCommit.reset(failure);
+		if (discarded != null) {
+			discarded.complete(failure == null ? null
+					: new GenericSearchException(
+							"IndexWriter discarded, pending writes lost indexName="
+									+ indexName, failure));
+		}
+	}
+
+	/**
+	 * check that no writes of given ticket generation were lost, called
+	 * while the IndexWriter is locked.
+	 * 
+	 * @throws GenericSearchException
+	 *             if the IndexWriter was discarded meanwhile.
+	 */
+	void checkNotDiscarded(final String indexName, final long generation)
+			throws GenericSearchException {
+		PendingCommit pendingCommit = getPendingCommit(indexName);
+		Throwable failure = pendingCommit.getFailure(generation);
+		if (failure != null) {
+			throw new GenericSearchException(
+					"IndexWriter discarded, pending writes lost indexName="
+							+ indexName, failure);
+		}
+	}
+
+	/**
+	 * get number of writes of given indexName waiting for a commit.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @return int number of pending writes.
+	 */
+	public int getPendingWrites(final String indexName) {
+		PendingCommit pendingCommit = pendingCommits.get(indexName);
+		return pendingCommit == null ? 0 : pendingCommit.getWrites();
+	}
+
+	/**
+	 * wait for ticket and map failures to GenericSearchException.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param ticket
+	 *            ticket of the commit.
+	 * @throws GenericSearchException
+	 *             e
+	 */
+	public static void awaitCommit(final String indexName,
+			final Future<Void> ticket) throws GenericSearchException {
+		try {
+			ticket.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new GenericSearchException(
+					"commit interrupted indexName=" + indexName, e);
+		} catch (ExecutionException e) {
+			throw new GenericSearchException("commit error indexName="
+					+ indexName + "\n", e.getCause());
+		}
+	}
+
+	private PendingCommit getPendingCommit(final String indexName) {
+		PendingCommit pendingCommit = pendingCommits.get(indexName);
+		if (pendingCommit == null) {
+			PendingCommit newPendingCommit = new PendingCommit(indexName);
+			pendingCommit = pendingCommits.putIfAbsent(indexName,
+					newPendingCommit);
+			if (pendingCommit == null) {
+				pendingCommit = newPendingCommit;
+			}
+		}
+		return pendingCommit;
+	}
+
+	/**
+	 * Writes of one index waiting for the same commit.
+	 * 
+	 */
+	private final class PendingCommit {
+
+		private final String indexName;
+
+		private final int maxDocs;
+
+		private final long maxLatency;
+
+		private Ticket ticket;
+
+		private int writes;
+
+		/** number of IndexWriters discarded with lost writes. */
+		private long generation;
+
+		private Throwable lastFailure;
+
+		private PendingCommit(final String indexName) {
+			this.indexName = indexName;
+			maxDocs = IndexSettings.getInt(indexName, "commit.maxDocs",
+					DEFAULT_MAX_DOCS);
+			maxLatency = IndexSettings.getLong(indexName, "commit.maxLatency",
+					DEFAULT_MAX_LATENCY);
+		}
+
+		/**
+		 * register one write and schedule the commit if needed.
+		 * 
+		 * @return FutureTask the ticket covering the write.
+		 */
+		private synchronized Ticket register() {
+			Ticket current = getTicket();
+			writes++;
+			if (maxDocs > 0 && writes >= maxDocs) {
+				executor.execute(current);
+			} else if (writes == 1 && maxLatency > 0) {
+				executor.schedule(current, maxLatency, TimeUnit.MILLISECONDS);
+			}
+			return current;
+		}
+
+		private synchronized Ticket getTicket() {
+			if (ticket == null) {
+				ticket = newTicket();
+			}
+			return ticket;
+		}
+
+		private synchronized int getWrites() {
+			return writes;
+		}
+
+		/**
+		 * detach given ticket when its commit starts, later writes get a
+		 * new ticket.
+		 * 
+		 * @param started
+		 *            ticket of the started commit.
+		 */
+		private synchronized void detach(final Ticket started) {
+			if (ticket == started) {
+				ticket = null;
+				writes = 0;
+			}
+		}
+
+		private synchronized Ticket reset(final Throwable failure) {
+			Ticket discarded = ticket;
+			ticket = null;
+			writes = 0;
+			if (failure != null) {
+				generation++;
+				lastFailure = failure;
+			}
+			return discarded;
+		}
+
+		/**
+		 * @return Throwable the last failure if an IndexWriter was discarded
+		 *         since given generation, else null.
+		 */
+		private synchronized Throwable getFailure(final long ticketGeneration) {
+			return ticketGeneration == generation ? null : lastFailure;
+		}
+
+		private Ticket newTicket() {
+			CommitTask commitTask = new CommitTask(this, generation);
+			commitTask.ticket = new Ticket(commitTask);
+			return commitTask.ticket;
+		}
+	}
+
+	/**
+	 * Commit of one index, run once by its ticket.
+	 * 
+	 */
+	private static final class CommitTask implements Callable<Void> {
+
+		private final PendingCommit pendingCommit;
+
+		/** generation of the IndexWriter the writes of the ticket went to. */
+		private final long generation;
+
+		private Ticket ticket;
+
+		private CommitTask(final PendingCommit pendingCommit,
+				final long generation) {
+			this.pendingCommit = pendingCommit;
+			this.generation = generation;
+		}
+
+		public Void call() throws Exception {
+			pendingCommit.detach(ticket);
+			try {
+				IndexWriterCache.getInstance().commitPending(
+						pendingCommit.indexName, generation);
+			} catch (GenericSearchException e) {
+				logger.error("group commit error indexName="
+						+ pendingCommit.indexName, e);
+				throw e;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Ticket of a commit, which fails without running if the writes it
+	 * covers are discarded.
+	 * 
+	 */
+	private static final class Ticket extends FutureTask<Void> {
+
+		private Ticket(final CommitTask commitTask) {
+			super(commitTask);
+		}
+
+		private void complete(final Throwable failure) {
+			if (failure == null) {
+				set(null);
+			} else {
+				setException(failure);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,146 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldComparator;
+import org.apache.lucene.search.ScoreCachingWrappingScorer;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SortField;
+
+/**
+ * Collector passing only the hits after a {@link SearchCursor} to the
+ * wrapped TopDocsCollector, so the collector of a page only needs a queue
+ * of the page size, however deep the page is. The hits are compared with
+ * the cursor in the order of TopFieldCollector or, without sort fields,
+ * TopScoreDocCollector: by the sort values, then by document number.
+ * 
+ */
+public class CursorCollector extends Collector {
+
+	private final Collector collector;
+
+	private final SearchCursor after;
+
+	private final SortField[] sortFields;
+
+	private final FieldComparator<?>[] comparators;
+
+	private Scorer scorer;
+
+	private int docBase;
+
+	/**
+	 * @param collector
+	 *            collector of the page.
+	 * @param sortFields
+	 *            sort fields of the query, empty for sorting by relevance.
+	 * @param after
+	 *            cursor after the last hit of the previous page.
+	 * @throws IOException
+	 *             e
+	 */
+	public CursorCollector(Collector collector, SortField[] sortFields,
+			SearchCursor after) throws IOException {
+		if (after.getValues().length != sortFields.length) {
+			throw new IllegalArgumentException("cursor has "
+					+ after.getValues().length + " sort values, query has "
+					+ sortFields.length + " sort fields");
+		}
+		this.collector = collector;
+		this.after = after;
+		this.sortFields = sortFields;
+		comparators = new FieldComparator<?>[sortFields.length];
+		for (int i = 0; i < sortFields.length; i++) {
+			comparators[i] = sortFields[i].getComparator(1, i);
+		}
+	}
+
+	public void setScorer(Scorer scorer) throws IOException {
+		// the score is needed by the cursor and the wrapped collector
+		this.scorer = new ScoreCachingWrappingScorer(scorer);
+		for (int i = 0; i < comparators.length; i++) {
+			comparators[i].setScorer(this.scorer);
+		}
+		collector.setScorer(this.scorer);
+	}
+
+	public void collect(int doc) throws IOException {
+		if (isAfter(doc)) {
+			collector.collect(doc);
+		}
+	}
+
+	public void setNextReader(IndexReader reader, int docBase)
+			throws IOException {
+		this.docBase = docBase;
+		for (int i = 0; i < comparators.length; i++) {
+			comparators[i].setNextReader(reader, docBase);
+		}
+		collector.setNextReader(reader, docBase);
+	}
+
+	public boolean acceptsDocsOutOfOrder() {
+		return collector.acceptsDocsOutOfOrder();
+	}
+
+	private boolean isAfter(int doc) throws IOException {
+		if (comparators.length == 0) {
+			float score = scorer.score();
+			if (score != after.getScore()) {
+				return score < after.getScore();
+			}
+		} else {
+			Object[] values = after.getValues();
+			for (int i = 0; i < comparators.length; i++) {
+				int c = compare(comparators[i], doc, values[i]);
+				if (c != 0) {
+					return sortFields[i].getReverse() ? c < 0 : c > 0;
+				}
+			}
+		}
+		return docBase + doc > after.getDoc();
+	}
+
+	/**
+	 * compares the sort value of doc with a sort value of the cursor, which
+	 * SearchCursor parsed to the type of the comparator values.
+	 */
+	private static <T> int compare(FieldComparator<T> comparator, int doc,
+			Object value) throws IOException {
+		comparator.copy(0, doc);
+		@SuppressWarnings("unchecked")
+		T cursorValue = (T) value;
+		return comparator.compareValues(comparator.value(0), cursorValue);
+	}
+
+}
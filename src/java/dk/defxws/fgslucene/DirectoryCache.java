@@ -0,0 +1,274 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FileSwitchDirectory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.defxws.fedoragsearch.server.Config;
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+/**
+ * Singleton for sharing the Lucene Directory of each index directory
+ * between the cached IndexWriter and IndexSearcher.
+ * 
+ * The setting directory.type selects the implementation. With "fs", the
+ * default, it is the configured FSDirectory class or FSDirectory.open. With
+ * "hybrid" it is a FileSwitchDirectory, which memory-maps the files with
+ * the extensions of directory.mmapExtensions (term dictionary, postings,
+ * norms, deletions and compound files) and reads all other files, mainly
+ * the large stored fields and term vectors, with NIO. With
+ * directory.preload=true the memory-mapped files are read once in the
+ * background when the directory is opened, so the first queries do not
+ * wait for page faults.
+ * 
+ */
+public final class DirectoryCache {
+
+	private static final String DEFAULT_MMAP_EXTENSIONS = "tis,tii,frq,prx,nrm,del,cfs";
+
+	private static DirectoryCache instance = null;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(DirectoryCache.class);
+
+	/** Holds Directory for each index directory path. */
+	private final ConcurrentMap<String, Directory> directories = new ConcurrentHashMap<String, Directory>();
+
+	/**
+	 * private Constructor for Singleton.
+	 * 
+	 */
+	private DirectoryCache() {
+	}
+
+	/**
+	 * Only initialize Object once.
+	 * 
+	 * @return DirectoryCache DirectoryCache
+	 * 
+	 */
+	public static synchronized DirectoryCache getInstance() {
+		if (instance == null) {
+			instance = new DirectoryCache();
+		}
+		return instance;
+	}
+
+	/**
+	 * get the shared Directory of given indexName. It must not be closed.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param config
+	 *            gsearch config-Object.
+	 * @return Directory shared Directory.
+	 * @throws GenericSearchException
+	 *             e
+	 */
+	public Directory getDirectory(final String indexName, final Config config)
+			throws GenericSearchException {
+		return getDirectory(indexName, config.getIndexDir(indexName), config);
+	}
+
+	/**
+	 * get the shared Directory of given indexName and index directory path.
+	 * It must not be closed.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param indexPath
+	 *            directory of index.
+	 * @return Directory shared Directory.
+	 * @throws GenericSearchException
+	 *             e
+	 */
+	public Directory getDirectory(final String indexName,
+			final String indexPath) throws GenericSearchException {
+		return getDirectory(indexName, indexPath, Config.getCurrentConfig());
+	}
+
+	private Directory getDirectory(final String indexName,
+			final String indexPath, final Config config)
+			throws GenericSearchException {
+		String key = new File(indexPath).getAbsolutePath();
+		Directory directory = directories.get(key);
+		if (directory != null) {
+			return directory;
+		}
+		synchronized (this) {
+			directory = directories.get(key);
+			if (directory != null) {
+				return directory;
+			}
+			try {
+				directory = open(indexName, new File(key), config);
+			} catch (IOException e) {
+				throw new GenericSearchException(
+						"Directory open error indexName=" + indexName
+								+ " indexPath=" + indexPath, e);
+			}
+			directories.put(key, directory);
+			logger.info("Directory opened indexName=" + indexName + " "
+					+ directory);
+			if (IndexSettings.getBoolean(indexName, "directory.preload", false)) {
+				preload(indexName, directory);
+			}
+			return directory;
+		}
+	}
+
+	private Directory open(final String indexName, final File path,
+			final Config config) throws IOException, GenericSearchException {
+		int maxChunkSize = config == null ? 0 : config
+				.getMaxChunkSize(indexName);
+		if ("hybrid".equals(IndexSettings.getString(indexName,
+				"directory.type", "fs"))) {
+			MMapDirectory mmapDirectory = new MMapDirectory(path);
+			if (maxChunkSize > 1) {
+				mmapDirectory.setMaxChunkSize(maxChunkSize);
+			}
+			NIOFSDirectory nioDirectory = new NIOFSDirectory(path,
+					mmapDirectory.getLockFactory());
+			return new FileSwitchDirectory(getMmapExtensions(indexName),
+					mmapDirectory, nioDirectory, true);
+		}
+		FSDirectory directory;
+		if (config != null
+				&& config.getLuceneDirectoryImplementation(indexName) != null) {
+			// configured FSDirectory
+			directory = IndexWriterCache.getInstance()
+					.getDirectoryImplementation(
+							config.getLuceneDirectoryImplementation(indexName),
+							path);
+		} else {
+			// default FSDirectory
+			directory = FSDirectory.open(path);
+		}
+		if (maxChunkSize > 1 && directory instanceof MMapDirectory) {
+			((MMapDirectory) directory).setMaxChunkSize(maxChunkSize);
+		}
+		return directory;
+	}
+
+	private static Set<String> getMmapExtensions(final String indexName) {
+		Set<String> extensions = new HashSet<String>();
+		StringTokenizer st = new StringTokenizer(IndexSettings.getString(
+				indexName, "directory.mmapExtensions", DEFAULT_MMAP_EXTENSIONS),
+				", ");
+		while (st.hasMoreTokens()) {
+			extensions.add(st.nextToken());
+		}
+		return extensions;
+	}
+
+	/**
+	 * reads the memory-mapped files of directory in a background thread,
+	 * so their pages are resident before the first queries.
+	 */
+	private void preload(final String indexName, final Directory directory) {
+		final Directory mapped;
+		final Set<String> extensions;
+		if (directory instanceof FileSwitchDirectory) {
+			mapped = ((FileSwitchDirectory) directory).getPrimaryDir();
+			extensions = getMmapExtensions(indexName);
+		} else if (directory instanceof MMapDirectory) {
+			mapped = directory;
+			extensions = null;
+		} else {
+			return;
+		}
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				long time = System.currentTimeMillis();
+				long bytes = 0;
+				byte[] buffer = new byte[64 * 1024];
+				try {
+					String[] files = mapped.listAll();
+					for (int i = 0; i < files.length; i++) {
+						if (extensions != null
+								&& !extensions.contains(FileSwitchDirectory
+										.getExtension(files[i]))) {
+							continue;
+						}
+						bytes += touch(mapped, files[i], buffer);
+					}
+				} catch (IOException e) {
+					logger.warn("Directory preload error indexName="
+							+ indexName + " " + e.toString());
+				}
+				logger.info("Directory preloaded indexName=" + indexName
+						+ " bytes=" + bytes + " millis="
+						+ (System.currentTimeMillis() - time));
+			}
+		}, "fgslucene-preload-" + indexName);
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	private static long touch(final Directory directory, final String name,
+			final byte[] buffer) {
+		IndexInput in = null;
+		try {
+			in = directory.openInput(name);
+			long length = in.length();
+			for (long pos = 0; pos < length; pos += buffer.length) {
+				in.readBytes(buffer, 0, (int) Math.min(buffer.length, length
+						- pos));
+			}
+			return length;
+		} catch (IOException e) {
+			// file was deleted by a merge meanwhile
+			return 0;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,423 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Singleton for caching texts extracted from datastreams and
+ * disseminations across IndexDocuments.
+ * 
+ * Texts are only cached if the IndexField names the version of its source
+ * (attribute dsVersion, e.g. the datastream version id or checksum, or
+ * asOfDateTime for disseminations), otherwise a changed datastream could
+ * not be told from a cached one. The memory tier holds up to
+ * textCache.maxMb megabytes of text, evicted texts move to the optional
+ * disk tier in directory textCache.dir, bounded by textCache.diskMaxMb.
+ * 
+ */
+public final class ExtractedTextCache {
+
+	private static ExtractedTextCache instance = null;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ExtractedTextCache.class);
+
+	private static final String ENCODING = "UTF-8";
+
+	private static final long MB = 1024L * 1024L;
+
+	/** Holds text for each key in access order. */
+	private final LinkedHashMap<String, String> texts = new LinkedHashMap<String, String>(
+			256, 0.75f, true);
+
+	/** Holds size of each disk tier file in access order. */
+	private final LinkedHashMap<String, Long> diskFiles = new LinkedHashMap<String, Long>(
+			256, 0.75f, true);
+
+	private final long maxChars;
+
+	private final File diskDir;
+
+	private final long diskMaxBytes;
+
+	private long chars;
+
+	/** size of the files of the disk tier, guarded by diskFiles. */
+	private long diskBytes;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong diskHits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * private Constructor for Singleton.
+	 * 
+	 */
+	private ExtractedTextCache() {
+		maxChars = IndexSettings.getLong(null, "textCache.maxMb", 32) * MB / 2;
+		String dir = IndexSettings.getString(null, "textCache.dir", null);
+		diskMaxBytes = IndexSettings.getLong(null, "textCache.diskMaxMb", 1024)
+				* MB;
+		File d = null;
+		if (dir != null) {
+			d = new File(dir);
+			if (!d.isDirectory() && !d.mkdirs()) {
+				logger.warn("textCache.dir " + dir
+						+ " is no directory, disk tier disabled");
+				d = null;
+			}
+		}
+		diskDir = d;
+		if (diskDir != null) {
+			loadDiskFiles();
+		}
+	}
+
+	/**
+	 * Only initialize Object once.
+	 * 
+	 * @return ExtractedTextCache ExtractedTextCache
+	 * 
+	 */
+	public static synchronized ExtractedTextCache getInstance() {
+		if (instance == null) {
+			instance = new ExtractedTextCache();
+		}
+		return instance;
+	}
+
+	/**
+	 * get key for the text of a datastream.
+	 * 
+	 * @return String key or null if the text must not be cached.
+	 */
+	public static String datastreamKey(final String pid, final String dsId,
+			final String dsVersion) {
+		if (pid == null || isEmpty(dsVersion)) {
+			return null;
+		}
+		return "ds\u0000" + pid + "\u0000" + dsId + "\u0000" + dsVersion;
+	}
+
+	/**
+	 * get key for the text of the first datastream with one of the
+	 * mimetypes.
+	 * 
+	 * @return String key or null if the text must not be cached.
+	 */
+	public static String firstDatastreamKey(final String pid,
+			final String dsMimetypes, final String dsVersion) {
+		if (pid == null || isEmpty(dsVersion)) {
+			return null;
+		}
+		return "mime\u0000" + pid + "\u0000" + dsMimetypes + "\u0000"
+				+ dsVersion;
+	}
+
+	/**
+	 * get key for the text of a dissemination.
+	 * 
+	 * @return String key or null if the text must not be cached.
+	 */
+	public static String disseminationKey(final String pid,
+			final String bDefPid, final String methodName,
+			final String parameters, final String asOfDateTime,
+			final String dsVersion) {
+		if (pid == null || (isEmpty(dsVersion) && isEmpty(asOfDateTime))) {
+			return null;
+		}
+		return "diss\u0000" + pid + "\u0000" + bDefPid + "\u0000"
+				+ methodName + "\u0000" + parameters + "\u0000" + asOfDateTime
+				+ "\u0000" + dsVersion;
+	}
+
+	/**
+	 * get cached text for key.
+	 * 
+	 * @param key
+	 *            key of the text.
+	 * @return String text or null if not cached.
+	 */
+	public String get(final String key) {
+		if (key == null || maxChars <= 0) {
+			return null;
+		}
+		synchronized (this) {
+			String text = texts.get(key);
+			if (text != null) {
+				hits.incrementAndGet();
+				return text;
+			}
+		}
+		String text = readDisk(key);
+		if (text != null) {
+			diskHits.incrementAndGet();
+			put(key, text);
+			return text;
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * put text for key into the cache.
+	 * 
+	 * @param key
+	 *            key of the text, not cached if null.
+	 * @param text
+	 *            text.
+	 */
+	public void put(final String key, final String text) {
+		if (key == null || text == null || text.length() > maxChars) {
+			return;
+		}
+		Map<String, String> evicted = new LinkedHashMap<String, String>();
+		synchronized (this) {
+			String old = texts.put(key, text);
+			if (old != null) {
+				chars -= old.length();
+			}
+			chars += text.length();
+			Iterator<Map.Entry<String, String>> it = texts.entrySet()
+					.iterator();
+			while (chars > maxChars && it.hasNext()) {
+				Map.Entry<String, String> eldest = it.next();
+				it.remove();
+				chars -= eldest.getValue().length();
+				evictions.incrementAndGet();
+				evicted.put(eldest.getKey(), eldest.getValue());
+			}
+		}
+		for (Map.Entry<String, String> e : evicted.entrySet()) {
+			writeDisk(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * get hit, miss and eviction counters.
+	 * 
+	 * @return String counters for logging.
+	 */
+	public String getStatistics() {
+		StringBuilder sb = new StringBuilder("textCache hits=");
+		sb.append(hits.get()).append(" diskHits=").append(diskHits.get())
+				.append(" misses=").append(misses.get())
+				.append(" evictions=").append(evictions.get());
+		synchronized (this) {
+			sb.append(" size=").append(texts.size()).append(" chars=")
+					.append(chars);
+		}
+		synchronized (diskFiles) {
+			sb.append(" diskFiles=").append(diskFiles.size())
+					.append(" diskBytes=").append(diskBytes);
+		}
+		return sb.toString();
+	}
+
+	private static boolean isEmpty(final String s) {
+		return s == null || s.trim().length() == 0;
+	}
+
+	private String fileName(final String key) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] digest = md.digest(key.getBytes(ENCODING));
+			StringBuilder sb = new StringBuilder(digest.length * 2 + 4);
+			for (int i = 0; i < digest.length; i++) {
+				int b = digest[i] & 0xff;
+				if (b < 16) {
+					sb.append('0');
+				}
+				sb.append(Integer.toHexString(b));
+			}
+			return sb.append(".txt").toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private String readDisk(final String key) {
+		if (diskDir == null) {
+			return null;
+		}
+		String name = fileName(key);
+		synchronized (diskFiles) {
+			if (diskFiles.get(name) == null) {
+				return null;
+			}
+		}
+		File file = new File(diskDir, name);
+		Reader in = null;
+		try {
+			in = new InputStreamReader(new FileInputStream(file), ENCODING);
+			// the key is stored in the first line to rule out collisions
+			StringBuilder sb = new StringBuilder((int) Math.min(
+					file.length(), Integer.MAX_VALUE));
+			char[] buffer = new char[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				sb.append(buffer, 0, n);
+			}
+			int eol = sb.indexOf("\n");
+			if (eol < 0 || !key.equals(sb.substring(0, eol))) {
+				return null;
+			}
+			return sb.substring(eol + 1);
+		} catch (IOException e) {
+			logger.warn("textCache read error file=" + file, e);
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	private void writeDisk(final String key, final String text) {
+		if (diskDir == null || key.indexOf('\n') >= 0) {
+			return;
+		}
+		String name = fileName(key);
+		File file = new File(diskDir, name);
+		// written to a temporary file first, so readers never see a
+		// partly written file
+		File tmp = null;
+		Writer out = null;
+		try {
+			tmp = File.createTempFile(name, ".tmp", diskDir);
+			out = new OutputStreamWriter(new FileOutputStream(tmp), ENCODING);
+			out.write(key);
+			out.write('\n');
+			out.write(text);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+				throw new IOException("cannot rename " + tmp + " to " + file);
+			}
+			tmp = null;
+		} catch (IOException e) {
+			logger.warn("textCache write error file=" + file, e);
+			return;
+		} finally {
+			close(out);
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+		synchronized (diskFiles) {
+			Long old = diskFiles.put(name, Long.valueOf(file.length()));
+			if (old != null) {
+				diskBytes -= old.longValue();
+			}
+			diskBytes += file.length();
+			evictDiskFiles();
+		}
+	}
+
+	/**
+	 * delete the eldest files of the disk tier until it holds at most
+	 * diskMaxBytes, the caller holds the lock of diskFiles.
+	 */
+	private void evictDiskFiles() {
+		Iterator<Map.Entry<String, Long>> it = diskFiles.entrySet().iterator();
+		while (diskBytes > diskMaxBytes && it.hasNext()) {
+			Map.Entry<String, Long> eldest = it.next();
+			it.remove();
+			diskBytes -= eldest.getValue().longValue();
+			new File(diskDir, eldest.getKey()).delete();
+		}
+	}
+
+	/**
+	 * register the files of the disk tier left by an earlier run, oldest
+	 * first, and delete the temporary files of interrupted writes. Files
+	 * beyond diskMaxBytes, e.g. after the setting was lowered, are deleted
+	 * eldest first.
+	 */
+	private void loadDiskFiles() {
+		File[] files = diskDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(final File f1, final File f2) {
+				long diff = f1.lastModified() - f2.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		synchronized (diskFiles) {
+			for (int i = 0; i < files.length; i++) {
+				if (files[i].isFile() && files[i].getName().endsWith(".tmp")) {
+					files[i].delete();
+				} else if (files[i].isFile()
+						&& files[i].getName().endsWith(".txt")) {
+					diskFiles.put(files[i].getName(), Long.valueOf(files[i]
+							.length()));
+					diskBytes += files[i].length();
+				}
+			}
+			evictDiskFiles();
+		}
+	}
+
+	private static void close(final Closeable stream) {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+}
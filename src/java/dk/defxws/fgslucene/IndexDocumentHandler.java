@@ -36,11 +36,18 @@ public class IndexDocumentHandler extends DefaultHandler {
     
     private static final Logger logger = LoggerFactory.getLogger(IndexDocumentHandler.class);
 
+    /** element text buffers above this capacity are not kept for reuse */
+    private static final int MAX_REUSED_CAPACITY = 1024 * 1024;
+
     private Document indexDocument;
     
+    /** parser reused by the parses of this handler */
+    private SAXParser parser;
+    
     private OperationsImpl owner;
     private String repositoryName;
-    private Stream elementBuffer;
+    private String pidOrFilename;
+    private StringBuilder elementBuffer;
     private String pid;
     private String fieldName;
     private Field.Index index;
@@ -54,7 +61,43 @@ public class IndexDocumentHandler extends DefaultHandler {
     private String methodName;
     private String parameters;
     private String asOfDateTime;
-    private HashMap<String, Stream> extractedTexts;
+    private String dsVersion;
+    private HashMap<String, String> extractedTexts;
+    
+    /**
+     * creates a handler which receives the IndexDocument as SAX events,
+     * e.g. as content handler of a SAXResult
+     */
+    public IndexDocumentHandler(
+            OperationsImpl owner, 
+            String repositoryName, 
+            String pidOrFilename) {
+        this.owner = owner;
+        this.repositoryName = repositoryName;
+        this.pidOrFilename = pidOrFilename;
+        elementBuffer = new StringBuilder();
+        extractedTexts = new HashMap<String, String>();
+    }
+    
+    /**
+     * resets the handler for a new IndexDocument
+     */
+    public void reset(
+            OperationsImpl owner, 
+            String repositoryName, 
+            String pidOrFilename) {
+        this.owner = owner;
+        this.repositoryName = repositoryName;
+        this.pidOrFilename = pidOrFilename;
+        indexDocument = null;
+        pid = null;
+        if (elementBuffer.capacity() > MAX_REUSED_CAPACITY) {
+            elementBuffer = new StringBuilder();
+        } else {
+            elementBuffer.setLength(0);
+        }
+        extractedTexts.clear();
+    }
     
     public IndexDocumentHandler(
             OperationsImpl owner, 
@@ -62,19 +105,25 @@ public class IndexDocumentHandler extends DefaultHandler {
             String pidOrFilename,
             Stream indexDoc)
     throws GenericSearchException {
-        this.owner = owner;
-        this.repositoryName = repositoryName;
-        elementBuffer = new Stream();
-        extractedTexts = new HashMap<String, Stream>();
-        SAXParserFactory spf = SAXParserFactory.newInstance();
-        spf.setNamespaceAware(true);
-        SAXParser parser;
-        try {
-            parser = spf.newSAXParser();
-        } catch (ParserConfigurationException e) {
-            throw new GenericSearchException("IndexDocument parser error pidOrFilename="+pidOrFilename, e);
-        } catch (SAXException e) {
-            throw new GenericSearchException("IndexDocument parser error pidOrFilename="+pidOrFilename, e);
+        this(owner, repositoryName, pidOrFilename);
+        parse(indexDoc);
+    }
+    
+    /**
+     * parses the serialized IndexDocument with the parser of this handler
+     */
+    public void parse(Stream indexDoc)
+    throws GenericSearchException {
+        if (parser == null) {
+            SAXParserFactory spf = SAXParserFactory.newInstance();
+            spf.setNamespaceAware(true);
+            try {
+                parser = spf.newSAXParser();
+            } catch (ParserConfigurationException e) {
+                throw new GenericSearchException("IndexDocument parser error pidOrFilename="+pidOrFilename, e);
+            } catch (SAXException e) {
+                throw new GenericSearchException("IndexDocument parser error pidOrFilename="+pidOrFilename, e);
+            }
         }
         try {
             parser.parse(new InputSource(indexDoc.getInputStream()), this);
@@ -86,6 +135,8 @@ public class IndexDocumentHandler extends DefaultHandler {
                     e.getColumnNumber(), e);
         } catch (SAXException e) {
             throw new GenericSearchException("IndexDocument parse error pidOrFilename="+pidOrFilename, e);
+        } finally {
+            parser.reset();
         }
     }
     
@@ -102,6 +153,7 @@ public class IndexDocumentHandler extends DefaultHandler {
         methodName = "";
         parameters = "";
         asOfDateTime = "";
+        dsVersion = null;
         index = Field.Index.ANALYZED;
         store = Field.Store.YES;
         termVector = Field.TermVector.NO;
@@ -112,9 +164,9 @@ public class IndexDocumentHandler extends DefaultHandler {
                 String aName = attrs.getLocalName(i);
                 if ("".equals(aName)) { aName = attrs.getQName(i); }
                 String val = attrs.getValue(i);
-                if (aName=="PID")
+                if ("PID".equals(aName))
                 	pid = val.trim();
-                if (aName=="boost")
+                if ("boost".equals(aName))
                     try {
                         docboost = Float.parseFloat(val);
                     } catch (NumberFormatException e) {
@@ -128,30 +180,31 @@ public class IndexDocumentHandler extends DefaultHandler {
                 String aName = attrs.getLocalName(i);
                 if ("".equals(aName)) { aName = attrs.getQName(i); }
                 String val = attrs.getValue(i);
-                if (aName=="IFname") fieldName = val;
-                if (aName=="dsId") dsId = val;
-                if (aName=="dsMimetypes") dsMimetypes = val;
-                if (aName=="bDefPid") bDefPid = val;
-                if (aName=="methodName") methodName = val;
-                if (aName=="parameters") parameters = val;
-                if (aName=="asOfDateTime") asOfDateTime = val;
-                if (aName=="index") 
+                if ("IFname".equals(aName)) fieldName = val;
+                if ("dsId".equals(aName)) dsId = val;
+                if ("dsMimetypes".equals(aName)) dsMimetypes = val;
+                if ("bDefPid".equals(aName)) bDefPid = val;
+                if ("methodName".equals(aName)) methodName = val;
+                if ("parameters".equals(aName)) parameters = val;
+                if ("asOfDateTime".equals(aName)) asOfDateTime = val;
+                if ("dsVersion".equals(aName)) dsVersion = val;
+                if ("index".equals(aName)) 
                     if ("ANALYZED".equals(val) || "TOKENIZED".equals(val)) index = Field.Index.ANALYZED;
                     else if ("NOT_ANALYZED".equals(val) || "UN_TOKENIZED".equals(val)) index = Field.Index.NOT_ANALYZED;
                     else if ("NO".equals(val)) index = Field.Index.NO;
                     else if ("NOT_ANALYZED_NO_NORMS".equals(val) || "NO_NORMS".equals(val)) index = Field.Index.NOT_ANALYZED_NO_NORMS;
                     else if ("ANALYZED_NO_NORMS".equals(val)) index = Field.Index.ANALYZED_NO_NORMS;
-                if (aName=="store") 
+                if ("store".equals(aName)) 
                     if ("YES".equals(val)) store = Field.Store.YES;
                     else if ("NO".equals(val)) store = Field.Store.NO;
                     else if ("COMPRESS".equals(val)) store = Field.Store.YES;
-                if (aName=="termVector") 
+                if ("termVector".equals(aName)) 
                     if ("NO".equals(val)) termVector = Field.TermVector.NO;
                     else if ("YES".equals(val)) termVector = Field.TermVector.YES;
                     else if ("WITH_OFFSETS".equals(val)) termVector = Field.TermVector.WITH_OFFSETS;
                     else if ("WITH_POSITIONS".equals(val)) termVector = Field.TermVector.WITH_POSITIONS;
                     else if ("WITH_POSITIONS_OFFSETS".equals(val)) termVector = Field.TermVector.WITH_POSITIONS_OFFSETS;
-                if (aName=="boost")
+                if ("boost".equals(aName))
                     try {
                         boost = Float.parseFloat(val);
                     } catch (NumberFormatException e) {
@@ -159,37 +212,32 @@ public class IndexDocumentHandler extends DefaultHandler {
                     }
             }
         }
-        if(this.elementBuffer != null) {
-            try {
-                this.elementBuffer.close();
-            } catch(IOException e) {
-                // ignore this
-            }
-        }
-        this.elementBuffer = new Stream();
+        elementBuffer.setLength(0);
     }
     
     public void characters(char[] text, int start, int length)
     throws SAXException {
-        try {
-            this.elementBuffer.write(new String(text, start, length).getBytes("UTF-8"));
-        } catch(IOException e) {
-            throw new SAXException(e);
-        }
+        elementBuffer.append(text, start, length);
     }
     
     public void endElement(String namespaceURI, String simpleName,
             String qualifiedName)  throws SAXException {
-        Stream ebs = elementBuffer;
         if ("IndexField".equals(simpleName)) {
+			String text = null;
+			ExtractedTextCache textCache = ExtractedTextCache.getInstance();
 			if (dsId != null) {
 				try {
 					if (extractedTexts.containsKey(dsId)) {
-						ebs = extractedTexts.get(dsId);
+						text = extractedTexts.get(dsId);
 					}
 					else {
-	                    ebs = owner.getDatastreamText(pid, repositoryName, dsId);
-	                    extractedTexts.put(dsId, ebs);
+						String key = ExtractedTextCache.datastreamKey(pid, dsId, dsVersion);
+						text = textCache.get(key);
+						if (text == null) {
+							text = toText(owner.getDatastreamText(pid, repositoryName, dsId));
+							textCache.put(key, text);
+						}
+	                    extractedTexts.put(dsId, text);
 					}
 				} catch (GenericSearchException e) {
 					logger.error(e.getMessage(), e);
@@ -197,39 +245,79 @@ public class IndexDocumentHandler extends DefaultHandler {
 				}
 			} else if (dsMimetypes != null) {
 				try {
-                    ebs = owner.getFirstDatastreamText(pid, repositoryName, dsMimetypes);
+					String key = ExtractedTextCache.firstDatastreamKey(pid, dsMimetypes, dsVersion);
+					text = textCache.get(key);
+					if (text == null) {
+						text = toText(owner.getFirstDatastreamText(pid, repositoryName, dsMimetypes));
+						textCache.put(key, text);
+					}
 				} catch (GenericSearchException e) {
 					logger.error(e.getMessage(), e);
 					throw new SAXException(e.getMessage(), e);
 				}
 			} else if (bDefPid != null) {
 				try {
-					ebs = owner.getDisseminationText(pid, repositoryName,
-							bDefPid, methodName, parameters, asOfDateTime);
+					String key = ExtractedTextCache.disseminationKey(pid, bDefPid,
+							methodName, parameters, asOfDateTime, dsVersion);
+					text = textCache.get(key);
+					if (text == null) {
+						text = toText(owner.getDisseminationText(pid, repositoryName,
+								bDefPid, methodName, parameters, asOfDateTime));
+						textCache.put(key, text);
+					}
 				} catch (GenericSearchException e) {
 					logger.error(e.getMessage(), e);
 					throw new SAXException(e.getMessage(), e);
 				}
+			} else if (elementBuffer.length() > 0) {
+				text = trim(elementBuffer);
 			}
-			if (ebs.size() > 0) {
+			if (text != null) {
 				if (logger.isDebugEnabled())
-					logger.debug(fieldName + "=" + ebs);
-                try {
-                    ebs.flush();
-                    StringBuffer text = new StringBuffer();
-                    ebs.writeCacheTo(text);
-                    final Field field = new Field(fieldName, text.toString().trim(), store, index, termVector);
-                    if (boost > Float.MIN_VALUE) {
-				        field.setBoost(boost);
-                    }
-			        indexDocument.add(field);
-                } catch(IOException e) {
-                    throw new SAXException(e);
+					logger.debug(fieldName + "=" + text);
+                final Field field = new Field(fieldName, text, store, index, termVector);
+                if (boost > Float.MIN_VALUE) {
+			        field.setBoost(boost);
                 }
+		        indexDocument.add(field);
 			}
 		}
     }
     
+    /**
+     * gets the trimmed text of a datastream or dissemination,
+     * null if it is empty
+     */
+    private static String toText(Stream ebs) throws SAXException {
+        if (ebs == null || ebs.size() <= 0) {
+            return null;
+        }
+        try {
+            ebs.flush();
+            StringBuffer sb = new StringBuffer();
+            ebs.writeCacheTo(sb);
+            return sb.toString().trim();
+        } catch(IOException e) {
+            throw new SAXException(e);
+        }
+    }
+    
+    /**
+     * gets the buffered text without leading and trailing whitespace,
+     * like String.trim() but without the intermediate String
+     */
+    private static String trim(StringBuilder buffer) {
+        int begin = 0;
+        int end = buffer.length();
+        while (begin < end && buffer.charAt(begin) <= ' ') {
+            begin++;
+        }
+        while (end > begin && buffer.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return buffer.substring(begin, end);
+    }
+    
     protected Document getIndexDocument() {
         return indexDocument;
     }
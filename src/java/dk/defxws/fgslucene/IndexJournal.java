@@ -0,0 +1,507 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of asynchronous updateIndex requests of one index.
+ * 
+ * The journal is a directory of segment files, named by the sequence number
+ * of their first entry, with one tab separated entry per line. A new segment
+ * is started when the current one exceeds its size limit and on every open,
+ * so a line torn by a crash is never appended to. The file journal.ack holds
+ * the sequence number up to which all entries are committed to the index,
+ * segments below it are deleted. Entries which could not be applied are
+ * appended to the file journal.dead in the same format.
+ * 
+ */
+public class IndexJournal {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(IndexJournal.class);
+
+	private static final String SEGMENT_PREFIX = "journal-";
+
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private static final String ACK_FILE = "journal.ack";
+
+	private static final String DEAD_LETTER_FILE = "journal.dead";
+
+	private static final String ENCODING = "UTF-8";
+
+	private final File dir;
+
+	private final long segmentBytes;
+
+	private final boolean sync;
+
+	private FileOutputStream out = null;
+
+	private long segmentSize = 0;
+
+	private long lastSeq = 0;
+
+	private long ackSeq = 0;
+
+	/**
+	 * @param dir
+	 *            directory of the journal, created if missing.
+	 * @param segmentBytes
+	 *            size after which a new segment is started.
+	 * @param sync
+	 *            whether each append is forced to disk.
+	 */
+	public IndexJournal(File dir, long segmentBytes, boolean sync) {
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.sync = sync;
+	}
+
+	/**
+	 * open the journal and read the entries which are not acknowledged.
+	 * 
+	 * @return List unacknowledged entries in sequence order.
+	 * @throws IOException
+	 *             e
+	 */
+	public synchronized List<Entry> open() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("journal directory " + dir.getAbsolutePath()
+					+ " could not be created");
+		}
+		ackSeq = readAck();
+		lastSeq = ackSeq;
+		List<Entry> entries = new ArrayList<Entry>();
+		File[] segments = listSegments();
+		for (int i = 0; i < segments.length; i++) {
+			readSegment(segments[i], entries);
+		}
+		deleteAcknowledgedSegments();
+		return entries;
+	}
+
+	/**
+	 * append an entry and force it to disk.
+	 * 
+	 * @return Entry appended entry with its sequence number.
+	 * @throws IOException
+	 *             e
+	 */
+	public synchronized Entry append(String action, String pid,
+			String repositoryName, String indexDocXslt) throws IOException {
+		return append(action, Collections.singletonList(pid), repositoryName,
+				indexDocXslt).get(0);
+	}
+
+	/**
+	 * append an entry for each pid and force them to disk at once.
+	 * 
+	 * @return List appended entries with their sequence numbers.
+	 * @throws IOException
+	 *             e
+	 */
+	public synchronized List<Entry> append(String action, List<String> pids,
+			String repositoryName, String indexDocXslt) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>(pids.size());
+		long time = System.currentTimeMillis();
+		for (String pid : pids) {
+			Entry entry = new Entry(lastSeq + 1, time, action, pid,
+					repositoryName, indexDocXslt);
+			if (out == null || segmentSize >= segmentBytes) {
+				roll(entry.seq);
+			}
+			byte[] line = entry.toLine().getBytes(ENCODING);
+			out.write(line);
+			segmentSize += line.length;
+			lastSeq = entry.seq;
+			entries.add(entry);
+		}
+		if (out != null) {
+			out.flush();
+			if (sync) {
+				out.getChannel().force(false);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * append an entry which could not be applied to the dead letter file.
+	 * 
+	 * @throws IOException
+	 *             e
+	 */
+	public synchronized void deadLetter(Entry entry) throws IOException {
+		FileOutputStream deadOut = new FileOutputStream(new File(dir,
+				DEAD_LETTER_FILE), true);
+		try {
+			deadOut.write(entry.toLine().getBytes(ENCODING));
+			deadOut.getChannel().force(false);
+		} finally {
+			deadOut.close();
+		}
+	}
+
+	/**
+	 * read the dead letter file.
+	 * 
+	 * @return List entries which could not be applied.
+	 * @throws IOException
+	 *             e
+	 */
+	public synchronized List<Entry> getDeadLetters() throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		File dead = new File(dir, DEAD_LETTER_FILE);
+		if (!dead.isFile()) {
+			return entries;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(dead), ENCODING));
+		try {
+			String line;
+			while ((line = readLine(reader)) != null) {
+				Entry entry = Entry.fromLine(line);
+				if (entry != null) {
+					entries.add(entry);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return entries;
+	}
+
+	/**
+	 * acknowledge all entries up to given sequence number, they are
+	 * committed to the index and need no replay.
+	 * 
+	 * @param seq
+	 *            sequence number of last committed entry.
+	 * @throws IOException
+	 *             e
+	 */
+	public synchronized void acknowledge(long seq) throws IOException {
+		if (seq <= ackSeq) {
+			return;
+		}
+		File tmp = new File(dir, ACK_FILE + ".tmp");
+		FileOutputStream ackOut = new FileOutputStream(tmp);
+		try {
+			ackOut.write(Long.toString(seq).getBytes(ENCODING));
+			ackOut.getChannel().force(false);
+		} finally {
+			ackOut.close();
+		}
+		File ack = new File(dir, ACK_FILE);
+		if (!tmp.renameTo(ack)) {
+			ack.delete();
+			if (!tmp.renameTo(ack)) {
+				throw new IOException("journal ack " + ack.getAbsolutePath()
+						+ " could not be written");
+			}
+		}
+		ackSeq = seq;
+		deleteAcknowledgedSegments();
+	}
+
+	public synchronized long getLastSeq() {
+		return lastSeq;
+	}
+
+	public synchronized long getAckSeq() {
+		return ackSeq;
+	}
+
+	public synchronized int getSegmentCount() {
+		return listSegments().length;
+	}
+
+	public synchronized void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+
+	private void roll(long firstSeq) throws IOException {
+		if (out != null) {
+			// the entries of the batch in the old segment are forced too
+			out.flush();
+			if (sync) {
+				out.getChannel().force(false);
+			}
+		}
+		close();
+		File segment = new File(dir, SEGMENT_PREFIX
+				+ String.format("%020d", Long.valueOf(firstSeq))
+				+ SEGMENT_SUFFIX);
+		out = new FileOutputStream(segment, true);
+		segmentSize = segment.length();
+	}
+
+	private long readAck() throws IOException {
+		File ack = new File(dir, ACK_FILE);
+		if (!ack.isFile()) {
+			return 0;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(ack), ENCODING));
+		try {
+			String line = reader.readLine();
+			return line == null ? 0 : Long.parseLong(line.trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("journal ack " + ack.getAbsolutePath()
+					+ " is corrupt: " + e.getMessage());
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void readSegment(File segment, List<Entry> entries)
+			throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(segment), ENCODING));
+		try {
+			String line;
+			while ((line = readLine(reader)) != null) {
+				Entry entry = Entry.fromLine(line);
+				if (entry == null) {
+					logger.warn("journal " + segment.getAbsolutePath()
+							+ " skipping torn entry: " + line);
+					continue;
+				}
+				if (entry.seq > lastSeq) {
+					lastSeq = entry.seq;
+				}
+				if (entry.seq > ackSeq) {
+					entries.add(entry);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * read a line with its terminating '\n'. Each entry is written at once
+	 * ending in '\n', so a last line without it is torn, even when all its
+	 * fields are there.
+	 * 
+	 * @return String line ending in '\n' unless torn, null at end of file.
+	 * @throws IOException
+	 *             e
+	 */
+	private static String readLine(BufferedReader reader) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = reader.read()) != -1) {
+			sb.append((char) c);
+			if (c == '\n') {
+				break;
+			}
+		}
+		return sb.length() == 0 ? null : sb.toString();
+	}
+
+	/**
+	 * deletes the segments whose entries are all acknowledged, the last
+	 * entry of a segment precedes the first of the next one.
+	 */
+	private void deleteAcknowledgedSegments() {
+		File[] segments = listSegments();
+		for (int i = 0; i < segments.length - 1; i++) {
+			if (firstSeq(segments[i + 1]) - 1 <= ackSeq) {
+				if (!segments[i].delete()) {
+					logger.warn("journal segment "
+							+ segments[i].getAbsolutePath()
+							+ " could not be deleted");
+				}
+			}
+		}
+	}
+
+	private File[] listSegments() {
+		File[] segments = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File d, String name) {
+				return name.startsWith(SEGMENT_PREFIX)
+						&& name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (segments == null) {
+			return new File[0];
+		}
+		// the zero padded sequence numbers sort by name
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	private static long firstSeq(File segment) {
+		String name = segment.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name
+				.length()
+				- SEGMENT_SUFFIX.length()));
+	}
+
+	/**
+	 * One asynchronous updateIndex request.
+	 * 
+	 */
+	public static final class Entry {
+
+		private final long seq;
+
+		private final long time;
+
+		private final String action;
+
+		private final String pid;
+
+		private final String repositoryName;
+
+		private final String indexDocXslt;
+
+		private Entry(long seq, long time, String action, String pid,
+				String repositoryName, String indexDocXslt) {
+			this.seq = seq;
+			this.time = time;
+			this.action = action;
+			this.pid = pid;
+			this.repositoryName = repositoryName;
+			this.indexDocXslt = indexDocXslt;
+		}
+
+		public long getSeq() {
+			return seq;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public String getAction() {
+			return action;
+		}
+
+		public String getPid() {
+			return pid;
+		}
+
+		public String getRepositoryName() {
+			return repositoryName;
+		}
+
+		public String getIndexDocXslt() {
+			return indexDocXslt;
+		}
+
+		private String toLine() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(seq).append('\t').append(time).append('\t');
+			escape(sb, action);
+			sb.append('\t');
+			escape(sb, pid);
+			sb.append('\t');
+			escape(sb, repositoryName);
+			sb.append('\t');
+			escape(sb, indexDocXslt);
+			sb.append('\n');
+			return sb.toString();
+		}
+
+		private static Entry fromLine(String line) {
+			if (!line.endsWith("\n")) {
+				return null;
+			}
+			String[] fields = line.substring(0, line.length() - 1).split(
+					"\t", -1);
+			if (fields.length != 6) {
+				return null;
+			}
+			try {
+				return new Entry(Long.parseLong(fields[0]), Long
+						.parseLong(fields[1]), unescape(fields[2]),
+						unescape(fields[3]), unescape(fields[4]),
+						unescape(fields[5]));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		private static void escape(StringBuilder sb, String value) {
+			if (value == null) {
+				return;
+			}
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '\\') {
+					sb.append("\\\\");
+				} else if (c == '\t') {
+					sb.append("\\t");
+				} else if (c == '\n') {
+					sb.append("\\n");
+				} else if (c == '\r') {
+					sb.append("\\r");
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+
+		private static String unescape(String value) {
+			StringBuilder sb = new StringBuilder(value.length());
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '\\' && i + 1 < value.length()) {
+					char n = value.charAt(++i);
+					sb.append(n == 't' ? '\t' : n == 'n' ? '\n'
+							: n == 'r' ? '\r' : n);
+				} else {
+					sb.append(c);
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+}
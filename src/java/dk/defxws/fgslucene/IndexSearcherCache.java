@@ -0,0 +1,318 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+/**
+ * Singleton for sharing IndexSearchers (one for each index).
+ * 
+ * The IndexReader of a cached IndexSearcher is ref-counted, callers
+ * {@link #acquire(String, String)} a searcher for one query and
+ * {@link #release(String, IndexSearcher)} it afterwards. The reader is
+ * reopened only if the index changed, at most every searcher.maxStaleness
+ * milliseconds (default 1000). One query reopens it without blocking the
+ * others, which use the current searcher until the new one is published.
+ * With searcher.nrt=true the reader is opened near-real-time from the
+ * IndexWriter cached in {@link IndexWriterCache}, so updates are
+ * searchable before they are committed. A new reader is warmed by
+ * {@link SortCache#warm(String, IndexReader)} before it is published,
+ * without holding the lock the queries take.
+ * 
+ */
+public final class IndexSearcherCache {
+
+	private static IndexSearcherCache instance = null;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(IndexSearcherCache.class);
+
+	/** Holds shared searcher for each index. */
+	private final ConcurrentMap<String, SearcherEntry> searchers = new ConcurrentHashMap<String, SearcherEntry>();
+
+	/**
+	 * private Constructor for Singleton.
+	 * 
+	 */
+	private IndexSearcherCache() {
+	}
+
+	/**
+	 * Only initialize Object once.
+	 * 
+	 * @return IndexSearcherCache IndexSearcherCache
+	 * 
+	 */
+	public static synchronized IndexSearcherCache getInstance() {
+		if (instance == null) {
+			instance = new IndexSearcherCache();
+		}
+		return instance;
+	}
+
+	/**
+	 * get the current IndexSearcher of given indexName, reopened if the
+	 * index changed. Must be released after use.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param indexPath
+	 *            directory of index.
+	 * @return IndexSearcher shared searcher.
+	 * @throws GenericSearchException
+	 *             e
+	 */
+	public IndexSearcher acquire(final String indexName, final String indexPath)
+			throws GenericSearchException {
+		SearcherEntry entry = getEntry(indexName);
+		try {
+			IndexSearcher searcher;
+			synchronized (entry) {
+				if (entry.searcher == null) {
+					// nothing to serve meanwhile, the first open is waited for
+					Opened opened = open(entry, indexName, indexPath);
+					SortCache.getInstance().warm(indexName, opened.reader);
+					swap(entry, indexName, null, opened);
+					entry.lastCheck = System.currentTimeMillis();
+				}
+				searcher = entry.searcher;
+				searcher.getIndexReader().incRef();
+			}
+			long now = System.currentTimeMillis();
+			if (now - entry.lastCheck < entry.maxStaleness
+					|| !entry.reopening.compareAndSet(false, true)) {
+				// fresh enough, or another query reopens and this one uses
+				// the current searcher meanwhile
+				return searcher;
+			}
+			try {
+				Opened opened = reopen(entry, indexName, indexPath, searcher);
+				entry.lastCheck = now;
+				if (opened == null) {
+					return searcher;
+				}
+				// the new reader serves queries only after its sort fields
+				// are loaded, the current one serves them meanwhile
+				SortCache.getInstance().warm(indexName, opened.reader);
+				IndexSearcher newSearcher;
+				synchronized (entry) {
+					swap(entry, indexName, searcher, opened);
+					newSearcher = entry.searcher;
+					newSearcher.getIndexReader().incRef();
+				}
+				release(indexName, searcher);
+				return newSearcher;
+			} catch (IOException e) {
+				release(indexName, searcher);
+				throw e;
+			} catch (RuntimeException e) {
+				release(indexName, searcher);
+				throw e;
+			} finally {
+				entry.reopening.set(false);
+			}
+		} catch (IOException e) {
+			throw new GenericSearchException(
+					"IndexSearcher open error indexName=" + indexName
+							+ " :\n", e);
+		}
+	}
+
+	/**
+	 * release IndexSearcher acquired for given indexName.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param searcher
+	 *            IndexSearcher to release, may be null.
+	 */
+	public void release(final String indexName, final IndexSearcher searcher) {
+		if (searcher == null) {
+			return;
+		}
+		try {
+			searcher.getIndexReader().decRef();
+		} catch (IOException e) {
+			logger.warn("IndexSearcher release error indexName=" + indexName,
+					e);
+		}
+	}
+
+	private SearcherEntry getEntry(final String indexName) {
+		SearcherEntry entry = searchers.get(indexName);
+		if (entry == null) {
+			SearcherEntry newEntry = new SearcherEntry(indexName);
+			entry = searchers.putIfAbsent(indexName, newEntry);
+			if (entry == null) {
+				entry = newEntry;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * open a new reader for entry, near-real-time if configured and an
+	 * IndexWriter is cached.
+	 */
+	private Opened open(final SearcherEntry entry, final String indexName,
+			final String indexPath) throws IOException {
+		IndexReader reader = null;
+		IndexWriter writer = null;
+		if (entry.nrt) {
+			writer = IndexWriterCache.getInstance().getCachedIndexWriter(
+					indexName);
+			if (writer != null) {
+				try {
+					reader = IndexReader.open(writer, true);
+				} catch (IOException e) {
+					writer = null;
+				} catch (RuntimeException e) {
+					// writer closed meanwhile
+					writer = null;
+				}
+			}
+		}
+		if (reader == null) {
+			reader = IndexReader.open(DirectoryCache.getInstance()
+					.getDirectory(indexName, indexPath), true);
+		}
+		return new Opened(reader, writer);
+	}
+
+	/**
+	 * reopen the reader of given searcher, which the caller holds, if the
+	 * index changed. Runs without the lock of entry, queries use the current
+	 * searcher meanwhile.
+	 * 
+	 * @return Opened the new reader, null if the index did not change.
+	 */
+	private Opened reopen(final SearcherEntry entry, final String indexName,
+			final String indexPath, final IndexSearcher searcher)
+			throws IOException {
+		IndexWriter writer;
+		synchronized (entry) {
+			writer = entry.writer;
+		}
+		if (entry.nrt
+				&& writer != IndexWriterCache.getInstance()
+						.getCachedIndexWriter(indexName)) {
+			// IndexWriter was closed or replaced, reader can not reopen from it
+			return open(entry, indexName, indexPath);
+		}
+		IndexReader current = searcher.getIndexReader();
+		IndexReader reader;
+		try {
+			reader = current.reopen();
+		} catch (RuntimeException e) {
+			return open(entry, indexName, indexPath);
+		}
+		if (reader == current) {
+			return null;
+		}
+		return new Opened(reader, writer);
+	}
+
+	/**
+	 * publish the opened reader, called with the lock of entry.
+	 * 
+	 * @param base
+	 *            searcher the reader was reopened from, the reader is
+	 *            dropped if the entry was changed meanwhile.
+	 */
+	private void swap(final SearcherEntry entry, final String indexName,
+			final IndexSearcher base, final Opened opened) throws IOException {
+		if (entry.searcher != base) {
+			// closed or replaced meanwhile
+			opened.reader.decRef();
+			return;
+		}
+		IndexSearcher old = entry.searcher;
+		entry.searcher = new IndexSearcher(opened.reader);
+		entry.writer = opened.writer;
+		if (logger.isDebugEnabled())
+			logger.debug("IndexSearcher opened indexName=" + indexName
+					+ " version=" + opened.reader.getVersion() + " nrt="
+					+ (opened.writer != null));
+		release(indexName, old);
+	}
+
+	/**
+	 * A newly opened reader and the IndexWriter it was opened from.
+	 * 
+	 */
+	private static final class Opened {
+
+		private final IndexReader reader;
+
+		private final IndexWriter writer;
+
+		private Opened(final IndexReader reader, final IndexWriter writer) {
+			this.reader = reader;
+			this.writer = writer;
+		}
+	}
+
+	/**
+	 * Shared searcher of one index.
+	 * 
+	 */
+	private static final class SearcherEntry {
+
+		private final boolean nrt;
+
+		private final long maxStaleness;
+
+		/** at most one query reopens the reader at a time. */
+		private final AtomicBoolean reopening = new AtomicBoolean();
+
+		private IndexSearcher searcher;
+
+		private IndexWriter writer;
+
+		private volatile long lastCheck;
+
+		private SearcherEntry(final String indexName) {
+			nrt = IndexSettings.getBoolean(indexName, "searcher.nrt", false);
+			maxStaleness = IndexSettings.getLong(indexName,
+					"searcher.maxStaleness", 1000);
+		}
+	}
+
+}
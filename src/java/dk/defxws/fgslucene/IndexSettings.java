@@ -0,0 +1,169 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the settings of the Lucene plugin which have no counterpart in the
+ * gsearch config. Settings are read from system properties, a setting
+ * fgslucene.&lt;indexName&gt;.&lt;key&gt; for one index overrides the
+ * setting fgslucene.&lt;key&gt; for all indexes.
+ * 
+ */
+public final class IndexSettings {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(IndexSettings.class);
+
+	private static final String PREFIX = "fgslucene.";
+
+	/**
+	 * private Constructor, only static methods.
+	 * 
+	 */
+	private IndexSettings() {
+	}
+
+	/**
+	 * get setting for given indexName and key.
+	 * 
+	 * @param indexName
+	 *            name of index, may be null for global settings.
+	 * @param key
+	 *            name of the setting.
+	 * @param defaultValue
+	 *            value if setting is not set.
+	 * @return String value of the setting.
+	 */
+	public static String getString(final String indexName, final String key,
+			final String defaultValue) {
+		String value = null;
+		if (indexName != null) {
+			value = System.getProperty(PREFIX + indexName + "." + key);
+		}
+		if (value == null) {
+			value = System.getProperty(PREFIX + key);
+		}
+		if (value == null || value.trim().length() == 0) {
+			return defaultValue;
+		}
+		return value.trim();
+	}
+
+	/**
+	 * get int setting for given indexName and key.
+	 * 
+	 * @param indexName
+	 *            name of index, may be null for global settings.
+	 * @param key
+	 *            name of the setting.
+	 * @param defaultValue
+	 *            value if setting is not set or not a number.
+	 * @return int value of the setting.
+	 */
+	public static int getInt(final String indexName, final String key,
+			final int defaultValue) {
+		return (int) getLong(indexName, key, defaultValue);
+	}
+
+	/**
+	 * get long setting for given indexName and key.
+	 * 
+	 * @param indexName
+	 *            name of index, may be null for global settings.
+	 * @param key
+	 *            name of the setting.
+	 * @param defaultValue
+	 *            value if setting is not set or not a number.
+	 * @return long value of the setting.
+	 */
+	public static long getLong(final String indexName, final String key,
+			final long defaultValue) {
+		String value = getString(indexName, key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			logger.warn("setting " + key + "=" + value + " for indexName="
+					+ indexName + " is not a number, using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * get double setting for given indexName and key.
+	 * 
+	 * @param indexName
+	 *            name of index, may be null for global settings.
+	 * @param key
+	 *            name of the setting.
+	 * @param defaultValue
+	 *            value if setting is not set or not a number.
+	 * @return double value of the setting.
+	 */
+	public static double getDouble(final String indexName, final String key,
+			final double defaultValue) {
+		String value = getString(indexName, key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			logger.warn("setting " + key + "=" + value + " for indexName="
+					+ indexName + " is not a number, using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * get boolean setting for given indexName and key.
+	 * 
+	 * @param indexName
+	 *            name of index, may be null for global settings.
+	 * @param key
+	 *            name of the setting.
+	 * @param defaultValue
+	 *            value if setting is not set.
+	 * @return boolean value of the setting.
+	 */
+	public static boolean getBoolean(final String indexName, final String key,
+			final boolean defaultValue) {
+		String value = getString(indexName, key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		return "true".equalsIgnoreCase(value) || "yes".equalsIgnoreCase(value);
+	}
+
+}
@@ -31,30 +31,55 @@ package dk.defxws.fgslucene;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.store.MMapDirectory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.escidoc.sb.common.Constants;
 import dk.defxws.fedoragsearch.server.Config;
 import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+import fedora.server.utilities.StreamUtility;
 
 /**
  * @author mih
  * 
  *         Singleton for caching IndexWriters (one for each index)
  * 
+ *         Each index has its own read/write lock. Updates and deletes only
+ *         take the shared lock and go concurrently through the thread-safe
+ *         IndexWriter, operations that replace the IndexWriter (commit,
+ *         createEmpty, discarding it after a fatal error) take the exclusive
+ *         lock. So writes to one index never wait for operations on another
+ *         index. Errors of single documents and transient I/O errors keep
+ *         the IndexWriter, after a fatal error it is reopened with backoff.
+ *         IndexWriters idle for writer.idleMinutes are closed, and the
+ *         largest buffer is flushed when all buffers together exceed
+ *         writer.ramBudgetMb.
+ * 
  */
 public final class IndexWriterCache {
 
@@ -64,15 +89,54 @@ public final class IndexWriterCache {
 			.getLogger(IndexWriterCache.class);
 
 	/** Holds IndexWriter for each index. */
-	private Map<String, IndexWriter> indexWriters = new HashMap<String, IndexWriter>();
+	private final ConcurrentMap<String, IndexWriter> indexWriters = new ConcurrentHashMap<String, IndexWriter>();
+
+	/** Holds read/write lock for each index. */
+	private final ConcurrentMap<String, ReentrantReadWriteLock> indexLocks = new ConcurrentHashMap<String, ReentrantReadWriteLock>();
+
+	/** Holds health of the IndexWriter for each index. */
+	private final ConcurrentMap<String, WriterHealth> writerHealth = new ConcurrentHashMap<String, WriterHealth>();
+
+	/** Holds size in bytes of the last commit for each index. */
+	private final ConcurrentMap<String, Long> indexSizes = new ConcurrentHashMap<String, Long>();
 
-	private Object lockObject = new Object();
+	/** Holds time of last use of the IndexWriter for each index. */
+	private final ConcurrentMap<String, AtomicLong> lastUsed = new ConcurrentHashMap<String, AtomicLong>();
+
+	/** set while a thread checks the RAM budget. */
+	private final AtomicBoolean checkingRamBudget = new AtomicBoolean();
+
+	private final ScheduledExecutorService maintenance;
 
 	/**
 	 * private Constructor for Singleton.
+	 * Starts the maintenance task, which closes idle IndexWriters and
+	 * keeps the buffered documents of all IndexWriters within the RAM
+	 * budget.
 	 * 
 	 */
 	private IndexWriterCache() {
+		maintenance = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(final Runnable r) {
+						Thread thread = new Thread(r,
+								"fgslucene-writer-maintenance");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		long interval = Math.max(1000, IndexSettings.getLong(null,
+				"writer.maintenanceInterval", 10000));
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					closeIdleIndexWriters();
+					checkRamBudget();
+				} catch (Throwable e) {
+					logger.error("IndexWriter maintenance error", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
 	}
 
 	/**
@@ -98,25 +162,38 @@ public final class IndexWriterCache {
 	 * @param pid
 	 *            PID to update.
 	 * @param commit
-	 *            wether to commit indexWriter or not.
+	 *            whether to commit indexWriter and wait for the commit or
+	 *            leave it to the {@link CommitScheduler}.
+	 * @return Future ticket of the commit which makes the delete durable.
 	 * @throws GenericSearchException
 	 *             e
 	 */
-	public void delete(final String indexName, final Config config,
+	public Future<Void> delete(final String indexName, final Config config,
 			final String pid, final boolean commit)
 			throws GenericSearchException {
-		synchronized (lockObject) {
-			try {
-				getIndexWriter(indexName, false, config).deleteDocuments(
-						new Term("PID", pid));
-				commitIndexWriter(indexName, config);
-			} catch (Throwable e) {
-			    closeIndexWriter(indexName);
-				throw new GenericSearchException(
-						"updateIndex deletePid error indexName=" + indexName
-								+ " pid=" + pid + "\n", e);
-			} 
+		ReentrantReadWriteLock lock = getIndexLock(indexName);
+		Throwable error = null;
+		Future<Void> ticket = null;
+		lock.readLock().lock();
+		try {
+			getIndexWriter(indexName, false, config).deleteDocuments(
+					new Term("PID", pid));
+			ticket = CommitScheduler.getInstance().register(indexName);
+		} catch (Throwable e) {
+			error = e;
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (error != null) {
+			handleError(indexName, error);
+			throw new GenericSearchException(
+					"updateIndex deletePid error indexName=" + indexName
+							+ " pid=" + pid + "\n", error);
 		}
+		if (commit) {
+			CommitScheduler.getInstance().commit(indexName, ticket);
+		}
+		return ticket;
 	}
 
 	/**
@@ -131,50 +208,110 @@ public final class IndexWriterCache {
 	 * @param doc
 	 *            Update-Document.
 	 * @param commit
-	 *            wether to commit indexWriter or not.
+	 *            whether to commit indexWriter and wait for the commit or
+	 *            leave it to the {@link CommitScheduler}.
+	 * @return Future ticket of the commit which makes the update durable.
 	 * @throws GenericSearchException
 	 *             e
 	 */
-	public void update(final String indexName, final Config config,
+	public Future<Void> update(final String indexName, final Config config,
 			final String pid, final Document doc, final boolean commit)
 			throws GenericSearchException {
-		synchronized (lockObject) {
-			try {
-				getIndexWriter(indexName, false, config).updateDocument(
-						new Term("PID", pid), doc);
-				commitIndexWriter(indexName, config);
-				
-			} catch (Throwable e) {
-                closeIndexWriter(indexName);
-                throw new GenericSearchException(
-                        "updateIndex error indexName=" + indexName
-                                + " pid=" + pid + "\n", e);
-            } 
+		ReentrantReadWriteLock lock = getIndexLock(indexName);
+		Throwable error = null;
+		Future<Void> ticket = null;
+		lock.readLock().lock();
+		try {
+			getIndexWriter(indexName, false, config).updateDocument(
+					new Term("PID", pid), doc);
+			ticket = CommitScheduler.getInstance().register(indexName);
+		} catch (Throwable e) {
+			error = e;
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (error != null) {
+            handleError(indexName, error);
+            throw new GenericSearchException(
+                    "updateIndex error indexName=" + indexName
+                            + " pid=" + pid + "\n", error);
+        }
+		checkRamBudget();
+		if (commit) {
+			CommitScheduler.getInstance().commit(indexName, ticket);
 		}
+		return ticket;
 	}
 
 	/**
-	 * optimize index for given indexName.
+	 * start merging the index for given indexName down to maxSegments
+	 * segments and return without waiting for the merges. Updates of the
+	 * same index continue while merging, the merge scheduler commits when
+	 * the merges are done.
 	 * 
 	 * @param indexName
 	 *            name of index to open.
 	 * @param config
 	 *            gsearch config-Object.
+	 * @param maxSegments
+	 *            number of segments to merge down to.
 	 * @throws GenericSearchException
 	 *             e
 	 */
-	public void optimize(final String indexName, final Config config)
-			throws GenericSearchException {
-		synchronized (lockObject) {
+	public void optimize(final String indexName, final Config config,
+			final int maxSegments) throws GenericSearchException {
+		ReentrantReadWriteLock lock = getIndexLock(indexName);
+		Throwable error = null;
+		lock.readLock().lock();
+		try {
+			IndexWriter iw = getIndexWriter(indexName, false, config);
+			commitWhenDone(iw);
+			iw.optimize(Math.max(1, maxSegments), false);
+		} catch (Throwable e) {
+			error = e;
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (error != null) {
+            handleError(indexName, error);
+            throw new GenericSearchException(
+                    "updateIndex optimize error indexName=" + indexName, error);
+        }
+	}
+
+	/**
+	 * get progress of the merges of given indexName.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @return String mergeStatus element.
+	 */
+	public String getMergeStatus(final String indexName) {
+		StringBuffer sb = new StringBuffer("<mergeStatus indexName=\""
+				+ indexName + "\"");
+		IndexWriter iw = indexWriters.get(indexName);
+		if (iw != null) {
 			try {
-				getIndexWriter(indexName, false, config).optimize();
-				commitIndexWriter(indexName, config);
-			} catch (Throwable e) {
-                closeIndexWriter(indexName);
-                throw new GenericSearchException(
-                        "updateIndex optimize error indexName=" + indexName, e);                              
-            } 
+				int maxDoc = iw.maxDoc();
+				sb.append(" maxDoc=\"" + maxDoc + "\" numDocs=\""
+						+ iw.numDocs() + "\" mergingSegments=\""
+						+ iw.getMergingSegments().size() + "\"");
+			} catch (IOException e) {
+				logger.warn("getMergeStatus indexName=" + indexName + " "
+						+ e.toString());
+			}
+			if (iw.getConfig().getMergeScheduler() instanceof ManagedMergeScheduler) {
+				sb.append(((ManagedMergeScheduler) iw.getConfig()
+						.getMergeScheduler()).getStatus());
+			}
+			if (iw.getDirectory() instanceof ThrottledDirectory) {
+				sb.append(" throttledBytes=\""
+						+ ((ThrottledDirectory) iw.getDirectory())
+								.getMergeBytes() + "\"");
+			}
 		}
+		sb.append("/>\n");
+		return sb.toString();
 	}
 
 	/**
@@ -189,13 +326,48 @@ public final class IndexWriterCache {
 	 */
 	public void commit(final String indexName, final Config config)
 			throws GenericSearchException {
-		synchronized (lockObject) {
-			try {
-				closeIndexWriter(indexName);
-			} catch (IOException e) {
-				throw new GenericSearchException("commit error indexName="
-						+ indexName + "\n", e);
+		try {
+			closeIndexWriter(indexName);
+		} catch (GenericSearchException e) {
+			throw new GenericSearchException("commit error indexName="
+					+ indexName + "\n", e);
+		}
+	}
+
+	/**
+	 * commit pending changes of the cached IndexWriter for given indexName.
+	 * Does nothing if no IndexWriter is cached, closing it has committed.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param generation
+	 *            generation of the pending writes at the
+	 *            {@link CommitScheduler}.
+	 * @throws GenericSearchException
+	 *             e, also if the writes were lost by discarding the
+	 *             IndexWriter.
+	 */
+	void commitPending(final String indexName, final long generation)
+			throws GenericSearchException {
+		ReentrantReadWriteLock lock = getIndexLock(indexName);
+		Throwable error = null;
+		lock.readLock().lock();
+		try {
+			CommitScheduler.getInstance().checkNotDiscarded(indexName,
+					generation);
+			IndexWriter iw = indexWriters.get(indexName);
+			if (iw != null) {
+				commit(indexName, iw);
 			}
+		} catch (Throwable e) {
+			error = e;
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (error != null) {
+			handleError(indexName, error);
+			throw new GenericSearchException(
+					"commitIndexWriter error indexName=" + indexName, error);
 		}
 	}
 
@@ -211,16 +383,80 @@ public final class IndexWriterCache {
 	 */
 	public void createEmpty(final String indexName, final Config config)
 			throws GenericSearchException {
-        synchronized (lockObject)
-        {
+		ReentrantReadWriteLock lock = getIndexLock(indexName);
+		lock.writeLock().lock();
+		try {
             closeIndexWriter(indexName);
             getIndexWriter(indexName, true, config);
             closeIndexWriter(indexName);
+        } finally {
+        	lock.writeLock().unlock();
         }
 	}
 
+	/**
+	 * get size in bytes of the last commit of given indexName.
+	 * The size is taken from the segment infos at each commit, the
+	 * index directory is only read if no commit was seen yet.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param config
+	 *            gsearch config-Object.
+	 * @return long size of index in bytes.
+	 */
+	public long getIndexSize(final String indexName, final Config config) {
+		Long size = indexSizes.get(indexName);
+		if (size != null) {
+			return size.longValue();
+		}
+		try {
+			return updateIndexSize(indexName, DirectoryCache.getInstance()
+					.getDirectory(indexName, config));
+		} catch (GenericSearchException e) {
+			logger.warn("getIndexSize indexName=" + indexName + " "
+					+ e.toString());
+			return 0;
+		} catch (IOException e) {
+			logger.warn("getIndexSize indexName=" + indexName + " "
+					+ e.toString());
+			return 0;
+		}
+	}
+
+	/**
+	 * get the cached IndexWriter for given indexName without opening one.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @return IndexWriter cached IndexWriter or null.
+	 */
+	IndexWriter getCachedIndexWriter(final String indexName) {
+		return indexWriters.get(indexName);
+	}
+
+	/**
+	 * get read/write lock for given indexName.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @return ReentrantReadWriteLock lock of the index.
+	 */
+	private ReentrantReadWriteLock getIndexLock(final String indexName) {
+		ReentrantReadWriteLock lock = indexLocks.get(indexName);
+		if (lock == null) {
+			ReentrantReadWriteLock newLock = new ReentrantReadWriteLock();
+			lock = indexLocks.putIfAbsent(indexName, newLock);
+			if (lock == null) {
+				lock = newLock;
+			}
+		}
+		return lock;
+	}
+
 	/**
 	 * get IndexWriter for given indexPath and write it into cache.
+	 * Callers must hold the read or write lock of the index.
 	 * 
 	 * @param indexName
 	 *            name of index to open.
@@ -232,12 +468,24 @@ public final class IndexWriterCache {
 	private IndexWriter getIndexWriter(final String indexName,
 			final boolean create, final Config config)
 			throws GenericSearchException {
-		if (indexWriters.get(indexName) == null) {
-			IndexWriter iw = null;
+		touch(indexName);
+		IndexWriter iw = indexWriters.get(indexName);
+		if (iw != null) {
+			return iw;
+		}
+		synchronized (getIndexLock(indexName)) {
+			iw = indexWriters.get(indexName);
+			if (iw != null) {
+				return iw;
+			}
+			WriterHealth health = getHealth(indexName);
+			if (!create) {
+				health.checkOpen(indexName);
+			}
 			try {
 				IndexWriterConfig indexWriterConfig = new IndexWriterConfig(
 						Constants.LUCENE_VERSION,
-						getAnalyzer(config.getAnalyzer(indexName)));
+						AnalyzerCache.getInstance().getAnalyzer(indexName, config));
 				if (create) {
 					indexWriterConfig.setOpenMode(OpenMode.CREATE);
 				} else {
@@ -274,40 +522,242 @@ public final class IndexWriterCache {
 					indexWriterConfig.setWriteLockTimeout(config
 							.getDefaultWriteLockTimeout(indexName));
 				}
-				if (config.getLuceneDirectoryImplementation(indexName) != null) {
-					// Initialize IndexWriter with configured FSDirectory
-					FSDirectory directory = getDirectoryImplementation(
-							config.getLuceneDirectoryImplementation(indexName),
-							new File(config.getIndexDir(indexName)));
-					iw = new IndexWriter(directory, indexWriterConfig);
+				indexWriterConfig.setMergeScheduler(newMergeScheduler(indexName));
+				Directory directory = DirectoryCache.getInstance()
+						.getDirectory(indexName, config);
+				double mbPerSec = IndexSettings.getDouble(indexName,
+						"merge.maxMbPerSec", 0);
+				if (mbPerSec > 0) {
+					iw = new FlushingIndexWriter(new ThrottledDirectory(
+							directory, mbPerSec), indexWriterConfig);
 				} else {
-					// Initialize IndexWriter with default FSDirectory
-					iw = new IndexWriter(FSDirectory.open(new File(config
-							.getIndexDir(indexName))), indexWriterConfig);
-				}
-				if (config.getMaxChunkSize(indexName) > 1) {
-					if (iw.getDirectory() instanceof MMapDirectory) {
-						((MMapDirectory) iw.getDirectory())
-								.setMaxChunkSize(config
-										.getMaxChunkSize(indexName));
-					}
+					iw = new FlushingIndexWriter(directory,
+							indexWriterConfig);
 				}
 			} catch (Exception e) {
 				iw = null;
+				health.failed(e, IndexSettings.getLong(indexName,
+						"writer.reopenBackoff", 1000), IndexSettings.getLong(
+						indexName, "writer.reopenBackoffMax", 60000));
 				throw new GenericSearchException(
 						"IndexWriter new error, creating index indexName="
 								+ indexName + " :\n", e);
 			}
 			indexWriters.put(indexName, iw);
+			health.opened();
 			if (logger.isDebugEnabled())
 				logger.debug("getIndexWriter put to map " + iw);
 			return iw;
 		}
-		return indexWriters.get(indexName);
+	}
+
+	/**
+	 * get health of the IndexWriter of given indexName as a writerStatus
+	 * element.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @return String writerStatus element.
+	 */
+	public String getWriterStatus(final String indexName) {
+		return getHealth(indexName).toXml(indexName,
+				indexWriters.containsKey(indexName));
+	}
+
+	private WriterHealth getHealth(final String indexName) {
+		WriterHealth health = writerHealth.get(indexName);
+		if (health == null) {
+			WriterHealth newHealth = new WriterHealth();
+			health = writerHealth.putIfAbsent(indexName, newHealth);
+			if (health == null) {
+				health = newHealth;
+			}
+		}
+		return health;
+	}
+
+	/**
+	 * handles an error of an operation on the IndexWriter of given
+	 * indexName. Errors of single documents and transient I/O errors leave
+	 * the IndexWriter with its buffered documents in place, only fatal
+	 * errors of the IndexWriter discard it.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param error
+	 *            error of the operation.
+	 */
+	private void handleError(final String indexName, final Throwable error) {
+		WriterHealth health = getHealth(indexName);
+		if (error instanceof GenericSearchException) {
+			// opening the IndexWriter failed, that is recorded already
+			return;
+		}
+		if (!isFatal(error)) {
+			health.degraded(error);
+			return;
+		}
+		logger.error("IndexWriter of indexName=" + indexName
+				+ " failed, discarding it", error);
+		health.failed(error, IndexSettings.getLong(indexName,
+				"writer.reopenBackoff", 1000), IndexSettings.getLong(
+				indexName, "writer.reopenBackoffMax", 60000));
+		discardIndexWriter(indexName, error);
+	}
+
+	/**
+	 * an error is fatal if the IndexWriter can not be used afterwards.
+	 */
+	private static boolean isFatal(final Throwable error) {
+		return error instanceof Error
+				|| error instanceof AlreadyClosedException
+				|| error instanceof CorruptIndexException
+				|| error instanceof IllegalStateException;
+	}
+
+	/**
+	 * roll back and remove the failed IndexWriter for given indexName,
+	 * closing it would try to commit the broken state.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param error
+	 *            the fatal error, the tickets of the lost writes fail with
+	 *            it.
+	 */
+	private void discardIndexWriter(final String indexName,
+			final Throwable error) {
+		ReentrantReadWriteLock lock = getIndexLock(indexName);
+		lock.writeLock().lock();
+		try {
+			IndexWriter iw = indexWriters.remove(indexName);
+			if (iw != null) {
+				iw.rollback();
+			}
+		} catch (Throwable e) {
+			logger.warn("discardIndexWriter indexName=" + indexName + " "
+					+ e.toString());
+		} finally {
+			CommitScheduler.getInstance().discard(indexName, error);
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void touch(final String indexName) {
+		AtomicLong time = lastUsed.get(indexName);
+		if (time == null) {
+			AtomicLong newTime = new AtomicLong();
+			time = lastUsed.putIfAbsent(indexName, newTime);
+			if (time == null) {
+				time = newTime;
+			}
+		}
+		time.set(System.currentTimeMillis());
+	}
+
+	/**
+	 * commits and closes the IndexWriters which were not used for
+	 * writer.idleMinutes and are not merging.
+	 */
+	private void closeIdleIndexWriters() {
+		long idleMillis = IndexSettings.getLong(null, "writer.idleMinutes", 30) * 60000;
+		if (idleMillis <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, IndexWriter> entry : indexWriters.entrySet()) {
+			String indexName = entry.getKey();
+			AtomicLong time = lastUsed.get(indexName);
+			if (time != null && now - time.get() < idleMillis) {
+				continue;
+			}
+			if (!entry.getValue().getMergingSegments().isEmpty()) {
+				continue;
+			}
+			logger.info("closing idle IndexWriter indexName=" + indexName);
+			try {
+				closeIndexWriter(indexName);
+			} catch (GenericSearchException e) {
+				logger.warn("closing idle IndexWriter indexName=" + indexName
+						+ " " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * flushes the IndexWriters with the most buffered documents until the
+	 * buffers of all IndexWriters fit into writer.ramBudgetMb.
+	 */
+	private void checkRamBudget() {
+		long budget = (long) (IndexSettings.getDouble(null,
+				"writer.ramBudgetMb", 256) * 1024 * 1024);
+		if (budget <= 0 || !checkingRamBudget.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			for (int i = indexWriters.size(); i > 0; i--) {
+				long total = 0;
+				long largestBytes = 0;
+				String largest = null;
+				for (Map.Entry<String, IndexWriter> entry : indexWriters
+						.entrySet()) {
+					long bytes;
+					try {
+						bytes = entry.getValue().ramSizeInBytes();
+					} catch (AlreadyClosedException e) {
+						continue;
+					}
+					total += bytes;
+					if (bytes > largestBytes) {
+						largestBytes = bytes;
+						largest = entry.getKey();
+					}
+				}
+				if (total <= budget || largest == null) {
+					return;
+				}
+				if (logger.isDebugEnabled())
+					logger.debug("checkRamBudget total=" + total
+							+ " flushing indexName=" + largest + " bytes="
+							+ largestBytes);
+				flushIndexWriter(largest);
+			}
+		} finally {
+			checkingRamBudget.set(false);
+		}
+	}
+
+	/**
+	 * writes the buffered documents of the IndexWriter for given indexName
+	 * to a new segment without committing.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 */
+	private void flushIndexWriter(final String indexName) {
+		ReentrantReadWriteLock lock = getIndexLock(indexName);
+		Throwable error = null;
+		lock.readLock().lock();
+		try {
+			IndexWriter iw = indexWriters.get(indexName);
+			if (iw instanceof FlushingIndexWriter) {
+				((FlushingIndexWriter) iw).flushBuffer();
+			}
+		} catch (Throwable e) {
+			error = e;
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (error != null) {
+			logger.warn("flushIndexWriter indexName=" + indexName + " "
+					+ error.toString());
+			handleError(indexName, error);
+		}
 	}
 
 	/**
 	 * close IndexWriter for given indexPath.
+	 * Takes the write lock of the index, so callers must not hold its read lock.
 	 * 
 	 * @param indexName
 	 *            name of index to open.
@@ -316,72 +766,175 @@ public final class IndexWriterCache {
 	 */
 	private void closeIndexWriter(final String indexName)
 			throws GenericSearchException {
-		IndexWriter iw = null;
+		ReentrantReadWriteLock lock = getIndexLock(indexName);
+		Throwable error = null;
+		lock.writeLock().lock();
 		try {
-			if ((iw = indexWriters.get(indexName)) != null) {
+			IndexWriter iw = indexWriters.remove(indexName);
+			if (iw != null) {
 				if (logger.isDebugEnabled())
 					logger.debug("closeIndexWriter got from map - try to close "
 							+ iw);
-				indexWriters.get(indexName).close();
-				indexWriters.put(indexName, null);
+				try {
+					commit(indexName, iw);
+				} finally {
+					iw.close();
+				}
 			}
 		} catch (IOException e) {
-			iw = indexWriters.get(indexName);
-			iw = null;
-			indexWriters.put(indexName, null);
+			error = e;
 			throw new GenericSearchException(e.getMessage());
+		} catch (RuntimeException e) {
+			error = e;
+			throw e;
+		} catch (Error e) {
+			error = e;
+			throw e;
+		} finally {
+			// the writes are durable only if commit and close succeeded
+			CommitScheduler.getInstance().discard(indexName, error);
+			lock.writeLock().unlock();
 		}
 	}
 
 	/**
-	 * commits changes in IndexWriter for given indexPath.
+	 * commits given IndexWriter together with the untokenized fields
+	 * of the index as commit user data.
 	 * 
+	 * @param indexName
+	 *            name of index.
 	 * @param iw
 	 *            IndexWriter to commit.
-	 * @throws GenericSearchException
+	 * @throws IOException
 	 *             e
 	 */
-	private void commitIndexWriter(final String indexName,
-			final Config config) throws GenericSearchException {
-	    try {
-			getIndexWriter(indexName, false, config).commit();
-		} catch (Throwable e) {
-            closeIndexWriter(indexName);
-            throw new GenericSearchException(
-                    "commitIndexWriter error indexName=" + indexName, e);
-
-	    }
+	private void commit(final String indexName, final IndexWriter iw)
+			throws IOException {
+		Map<String, String> userData = UntokenizedFieldRegistry
+				.getInstance().getCommitUserData(indexName);
+		if (userData == null) {
+			iw.commit();
+		} else {
+			iw.commit(userData);
+		}
+		getHealth(indexName).committed();
+		try {
+			updateIndexSize(indexName, iw.getDirectory());
+		} catch (IOException e) {
+			logger.warn("updateIndexSize indexName=" + indexName + " "
+					+ e.toString());
+		}
+		try {
+			maybeExpungeDeletes(indexName, iw);
+		} catch (IOException e) {
+			logger.warn("maybeExpungeDeletes indexName=" + indexName + " "
+					+ e.toString());
+		}
 	}
 
 	/**
-	 * get Analyzer Object from ClassName.
+	 * starts background merges expunging the deleted documents if their
+	 * ratio exceeds the setting merge.expungeDeletesRatio. Checked at most
+	 * every merge.expungeDeletesInterval milliseconds and not while merges
+	 * are running.
 	 * 
-	 * @param analyzerClassName
-	 *            name of Analyzer-class.
-	 * @throws GenericSearchException
+	 * @param indexName
+	 *            name of index.
+	 * @param iw
+	 *            IndexWriter of the index.
+	 * @throws IOException
 	 *             e
 	 */
-	private Analyzer getAnalyzer(String analyzerClassName)
-			throws GenericSearchException {
-		Analyzer analyzer = null;
-		if (logger.isDebugEnabled())
-			logger.debug("analyzerClassName=" + analyzerClassName);
-		try {
-			Class analyzerClass = Class.forName(analyzerClassName);
-			if (logger.isDebugEnabled())
-				logger.debug("analyzerClass=" + analyzerClass.toString());
-			analyzer = (Analyzer) analyzerClass.getConstructor(new Class[] {})
-					.newInstance(new Object[] {});
+	private void maybeExpungeDeletes(final String indexName,
+			final IndexWriter iw) throws IOException {
+		double ratio = IndexSettings.getDouble(indexName,
+				"merge.expungeDeletesRatio", 0.2);
+		if (ratio <= 0) {
+			return;
+		}
+		MergeScheduler mergeScheduler = iw.getConfig().getMergeScheduler();
+		if (mergeScheduler instanceof ManagedMergeScheduler
+				&& !((ManagedMergeScheduler) mergeScheduler)
+						.isExpungeCheckDue(IndexSettings.getLong(indexName,
+								"merge.expungeDeletesInterval", 60000))) {
+			return;
+		}
+		int maxDoc = iw.maxDoc();
+		if (maxDoc == 0) {
+			return;
+		}
+		int deleted = maxDoc - iw.numDocs();
+		if ((double) deleted / maxDoc >= ratio) {
 			if (logger.isDebugEnabled())
-				logger.debug("analyzer=" + analyzer.toString());
-		} catch (ClassNotFoundException e) {
-			throw new GenericSearchException(analyzerClassName
-					+ ": class not found.\n", e);
-		} catch (Exception e) {
-			throw new GenericSearchException(analyzerClassName
-					+ ": instantiation error.\n", e);
+				logger.debug("maybeExpungeDeletes indexName=" + indexName
+						+ " deleted=" + deleted + " maxDoc=" + maxDoc);
+			commitWhenDone(iw);
+			iw.expungeDeletes(false);
 		}
-		return analyzer;
+	}
+
+	/**
+	 * asks the merge scheduler of given IndexWriter to commit when the
+	 * merges started next are done.
+	 * 
+	 * @param iw
+	 *            IndexWriter about to start merges.
+	 */
+	private void commitWhenDone(final IndexWriter iw) {
+		MergeScheduler mergeScheduler = iw.getConfig().getMergeScheduler();
+		if (mergeScheduler instanceof ManagedMergeScheduler) {
+			((ManagedMergeScheduler) mergeScheduler).commitWhenDone();
+		}
+	}
+
+	/**
+	 * get merge scheduler for a new IndexWriter, configured with the
+	 * settings merge.maxThreads and merge.threadPriority.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @return ManagedMergeScheduler new merge scheduler.
+	 */
+	private ManagedMergeScheduler newMergeScheduler(final String indexName) {
+		ManagedMergeScheduler mergeScheduler = new ManagedMergeScheduler(
+				indexName);
+		int maxThreads = IndexSettings.getInt(indexName, "merge.maxThreads", 0);
+		if (maxThreads > 0) {
+			mergeScheduler.setMaxMergeCount(Math.max(maxThreads + 2,
+					mergeScheduler.getMaxMergeCount()));
+			mergeScheduler.setMaxThreadCount(maxThreads);
+		}
+		// merges run below the priority of the updating threads
+		mergeScheduler.setMergeThreadPriority(Math.max(Thread.MIN_PRIORITY,
+				Math.min(Thread.MAX_PRIORITY, IndexSettings.getInt(indexName,
+						"merge.threadPriority", Thread.NORM_PRIORITY - 1))));
+		return mergeScheduler;
+	}
+
+	/**
+	 * sums the segment sizes of the last commit in given directory
+	 * and caches it as size of given indexName.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param directory
+	 *            Directory of the index.
+	 * @return long size of index in bytes.
+	 * @throws IOException
+	 *             e
+	 */
+	private long updateIndexSize(final String indexName,
+			final Directory directory) throws IOException {
+		long size = 0;
+		if (IndexReader.indexExists(directory)) {
+			SegmentInfos segmentInfos = new SegmentInfos();
+			segmentInfos.read(directory);
+			for (int i = 0; i < segmentInfos.size(); i++) {
+				size += segmentInfos.info(i).sizeInBytes(true);
+			}
+		}
+		indexSizes.put(indexName, Long.valueOf(size));
+		return size;
 	}
 
 	public FSDirectory getDirectoryImplementation(String dirImplClassName,
@@ -418,4 +971,100 @@ public final class IndexWriterCache {
 		return directory;
 	}
 
+	/**
+	 * Health of the IndexWriter of one index.
+	 * 
+	 */
+	private static final class WriterHealth {
+
+		private static final String HEALTHY = "healthy";
+
+		private static final String DEGRADED = "degraded";
+
+		private static final String FAILED = "failed";
+
+		private String state = HEALTHY;
+
+		private long opens = 0;
+
+		private long documentErrors = 0;
+
+		private long fatalErrors = 0;
+
+		private int consecutiveFailures = 0;
+
+		private long nextOpenTime = 0;
+
+		private String lastError = null;
+
+		private synchronized void checkOpen(final String indexName)
+				throws GenericSearchException {
+			long wait = nextOpenTime - System.currentTimeMillis();
+			if (FAILED.equals(state) && wait > 0) {
+				throw new GenericSearchException("IndexWriter of indexName="
+						+ indexName + " failed, reopen in " + wait
+						+ " ms: " + lastError);
+			}
+		}
+
+		private synchronized void opened() {
+			opens++;
+			if (FAILED.equals(state)) {
+				state = DEGRADED;
+			}
+		}
+
+		private synchronized void committed() {
+			state = HEALTHY;
+			consecutiveFailures = 0;
+		}
+
+		private synchronized void degraded(final Throwable error) {
+			documentErrors++;
+			lastError = error.toString();
+			if (!FAILED.equals(state)) {
+				state = DEGRADED;
+			}
+		}
+
+		private synchronized void failed(final Throwable error,
+				final long backoff, final long maxBackoff) {
+			fatalErrors++;
+			lastError = error.toString();
+			state = FAILED;
+			consecutiveFailures++;
+			long wait = backoff << Math.min(consecutiveFailures - 1, 20);
+			nextOpenTime = System.currentTimeMillis()
+					+ Math.min(wait, maxBackoff);
+		}
+
+		private synchronized String toXml(final String indexName,
+				final boolean open) {
+			return "<writerStatus indexName=\"" + indexName + "\" state=\""
+					+ state + "\" open=\"" + open + "\" opens=\"" + opens
+					+ "\" reopens=\"" + Math.max(0, opens - 1)
+					+ "\" documentErrors=\"" + documentErrors
+					+ "\" fatalErrors=\"" + fatalErrors + "\""
+					+ (lastError == null ? "" : " lastError=\""
+							+ StreamUtility.enc(lastError) + "\"") + "/>\n";
+		}
+	}
+
+	/**
+	 * IndexWriter which can write its buffered documents to a segment
+	 * without committing.
+	 * 
+	 */
+	private static final class FlushingIndexWriter extends IndexWriter {
+
+		private FlushingIndexWriter(final Directory directory,
+				final IndexWriterConfig indexWriterConfig) throws IOException {
+			super(directory, indexWriterConfig);
+		}
+
+		private void flushBuffer() throws IOException {
+			flush(true, true);
+		}
+	}
+
 }
@@ -0,0 +1,169 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.rmi.RemoteException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.Filter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Singleton caching the insearch filters of an {@link InsearchFilterProvider}
+ * per index and filter key, in LRU order with at most
+ * insearchFilter.maxEntries filters per index.
+ * 
+ * The filters are CachingWrapperFilters, which keep a bitset per segment
+ * reader, so after a reopen only new segments are filtered again.
+ * 
+ */
+public final class InsearchFilterCache {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(InsearchFilterCache.class);
+
+	private static InsearchFilterCache instance = null;
+
+	/** Holds cached filters for each index. */
+	private final ConcurrentMap<String, Map<String, KeyedFilter>> indexFilters = new ConcurrentHashMap<String, Map<String, KeyedFilter>>();
+
+	/**
+	 * private Constructor for Singleton.
+	 * 
+	 */
+	private InsearchFilterCache() {
+	}
+
+	/**
+	 * Only initialize Object once.
+	 * 
+	 * @return InsearchFilterCache InsearchFilterCache
+	 * 
+	 */
+	public static synchronized InsearchFilterCache getInstance() {
+		if (instance == null) {
+			instance = new InsearchFilterCache();
+		}
+		return instance;
+	}
+
+	/**
+	 * get the cached filter of the user, get it from the provider if not
+	 * cached.
+	 * 
+	 * @param provider
+	 *            the SearchResultFiltering plugin.
+	 * @param fgsUserName
+	 *            name of the user.
+	 * @param indexName
+	 *            name of index.
+	 * @return Filter the filter, or null if the provider has no filter key
+	 *         for the user.
+	 * @throws RemoteException
+	 *             from the provider.
+	 */
+	public Filter getFilter(final InsearchFilterProvider provider,
+			final String fgsUserName, final String indexName)
+			throws RemoteException {
+		String key = provider.getInsearchFilterKey(fgsUserName, indexName);
+		if (key == null) {
+			return null;
+		}
+		Map<String, KeyedFilter> filters = getFilters(indexName);
+		KeyedFilter filter;
+		synchronized (filters) {
+			filter = filters.get(key);
+		}
+		if (filter != null) {
+			return filter;
+		}
+		Filter userFilter = provider.getInsearchFilter(fgsUserName, indexName);
+		if (userFilter == null) {
+			return null;
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("getFilter indexName=" + indexName + " key=" + key
+					+ " filter=" + userFilter);
+		synchronized (filters) {
+			filter = filters.get(key);
+			if (filter == null) {
+				filter = new KeyedFilter(key, userFilter);
+				filters.put(key, filter);
+			}
+		}
+		return filter;
+	}
+
+	private Map<String, KeyedFilter> getFilters(final String indexName) {
+		Map<String, KeyedFilter> filters = indexFilters.get(indexName);
+		if (filters == null) {
+			Map<String, KeyedFilter> newFilters = new LinkedHashMap<String, KeyedFilter>(
+					16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				protected boolean removeEldestEntry(
+						final Map.Entry<String, KeyedFilter> eldest) {
+					return size() > Math.max(1, IndexSettings.getInt(
+							indexName, "insearchFilter.maxEntries", 100));
+				}
+			};
+			filters = indexFilters.putIfAbsent(indexName, newFilters);
+			if (filters == null) {
+				filters = newFilters;
+			}
+		}
+		return filters;
+	}
+
+	/**
+	 * A cached filter, its string is its key, so that the key of a cached
+	 * result of a filtered query does not contain the permissions.
+	 * 
+	 */
+	private static final class KeyedFilter extends CachingWrapperFilter {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String key;
+
+		private KeyedFilter(final String key, final Filter filter) {
+			super(filter);
+			this.key = key;
+		}
+
+		public String toString() {
+			return "insearchFilter(" + key + ")";
+		}
+	}
+}
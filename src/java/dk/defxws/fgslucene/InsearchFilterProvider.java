@@ -0,0 +1,67 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.rmi.RemoteException;
+
+import org.apache.lucene.search.Filter;
+
+/**
+ * Optional extension of a SearchResultFiltering plugin for insearch
+ * filtering. Instead of rewriting the query text with the permissions of
+ * the user, the plugin returns a filter, which is cached by
+ * {@link InsearchFilterCache} per index and filter key, with a bitset per
+ * segment that is reused across queries and reopens of the index.
+ * 
+ */
+public interface InsearchFilterProvider {
+
+	/**
+	 * @param fgsUserName
+	 *            name of the user.
+	 * @param indexName
+	 *            name of index.
+	 * @return String key of the permissions of the user, e.g. their sorted
+	 *         roles, users with equal keys must get equal filters. null if
+	 *         the query is to be rewritten by rewriteQueryForInsearch.
+	 */
+	public String getInsearchFilterKey(String fgsUserName, String indexName)
+			throws RemoteException;
+
+	/**
+	 * @param fgsUserName
+	 *            name of the user.
+	 * @param indexName
+	 *            name of index.
+	 * @return Filter of the documents the user may find, called only when
+	 *         no filter for the key is cached.
+	 */
+	public Filter getInsearchFilter(String fgsUserName, String indexName)
+			throws RemoteException;
+}
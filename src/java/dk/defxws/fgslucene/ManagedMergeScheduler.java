@@ -0,0 +1,171 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.MergePolicy;
+
+/**
+ * ConcurrentMergeScheduler of one cached IndexWriter, which keeps track of
+ * the running and finished merges for progress reporting and marks its merge
+ * threads for the {@link ThrottledDirectory}.
+ * 
+ * When the last running merge is done it asks for a commit, so merged
+ * segments become durable and the replaced ones can be deleted without
+ * waiting for the next update. It does so after every merge if merge.commit
+ * is set, by default unless the index is only committed on request (see
+ * {@link CommitScheduler}), otherwise only after merges requested with
+ * {@link #commitWhenDone()}.
+ * 
+ */
+public class ManagedMergeScheduler extends ConcurrentMergeScheduler {
+
+	private static final ThreadLocal<Boolean> merging = new ThreadLocal<Boolean>();
+
+	private final String indexName;
+
+	private final List<MergePolicy.OneMerge> running = new ArrayList<MergePolicy.OneMerge>();
+
+	private final AtomicLong completedMerges = new AtomicLong();
+
+	private final AtomicLong mergedDocs = new AtomicLong();
+
+	private final AtomicLong failedMerges = new AtomicLong();
+
+	private final boolean commitAfterMerges;
+
+	/** set when the merges started next are to be committed, guarded by running. */
+	private boolean commitRequested;
+
+	/** time of the last check for deletes to expunge. */
+	private final AtomicLong lastExpungeCheck = new AtomicLong();
+
+	public ManagedMergeScheduler(String indexName) {
+		this.indexName = indexName;
+		commitAfterMerges = IndexSettings.getBoolean(indexName,
+				"merge.commit", !CommitScheduler.getInstance()
+						.isCommitOnRequest(indexName));
+	}
+
+	/**
+	 * ask for a commit when the merges started next are done, called
+	 * before optimize and expungeDeletes.
+	 */
+	public void commitWhenDone() {
+		synchronized (running) {
+			commitRequested = true;
+		}
+	}
+
+	/**
+	 * check if deletes may be checked for expunging again, at most every
+	 * interval milliseconds and not while merges are running.
+	 * 
+	 * @param interval
+	 *            minimal time between two checks in milliseconds.
+	 * @return boolean true if the caller is to check now.
+	 */
+	public boolean isExpungeCheckDue(long interval) {
+		synchronized (running) {
+			if (!running.isEmpty()) {
+				return false;
+			}
+		}
+		long now = System.currentTimeMillis();
+		long last = lastExpungeCheck.get();
+		return now - last >= interval
+				&& lastExpungeCheck.compareAndSet(last, now);
+	}
+
+	/**
+	 * @return boolean whether the current thread is running a merge.
+	 */
+	public static boolean isMergeThread() {
+		return merging.get() != null;
+	}
+
+	protected void doMerge(MergePolicy.OneMerge merge) throws IOException {
+		synchronized (running) {
+			running.add(merge);
+		}
+		merging.set(Boolean.TRUE);
+		boolean done = false;
+		try {
+			super.doMerge(merge);
+			done = true;
+			completedMerges.incrementAndGet();
+			mergedDocs.addAndGet(merge.totalDocCount);
+		} finally {
+			merging.remove();
+			if (!done) {
+				failedMerges.incrementAndGet();
+			}
+			boolean commit = false;
+			synchronized (running) {
+				running.remove(merge);
+				if (running.isEmpty()) {
+					commit = commitRequested || (done && commitAfterMerges);
+					commitRequested = false;
+				}
+			}
+			if (commit) {
+				CommitScheduler.getInstance().commitAsync(indexName);
+			}
+		}
+	}
+
+	/**
+	 * get progress of the merges as attributes of a mergeStatus element.
+	 * 
+	 * @return String attributes.
+	 */
+	public String getStatus() {
+		int runningMerges;
+		long runningDocs = 0;
+		long runningBytes = 0;
+		synchronized (running) {
+			runningMerges = running.size();
+			for (MergePolicy.OneMerge merge : running) {
+				runningDocs += merge.totalDocCount;
+				runningBytes += merge.estimatedMergeBytes;
+			}
+		}
+		return " runningMerges=\"" + runningMerges + "\" runningDocs=\""
+				+ runningDocs + "\" runningBytes=\"" + runningBytes
+				+ "\" completedMerges=\"" + completedMerges.get()
+				+ "\" mergedDocs=\"" + mergedDocs.get()
+				+ "\" failedMerges=\"" + failedMerges.get() + "\"";
+	}
+
+}
@@ -13,26 +13,27 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.InvocationTargetException;
+import java.io.StringWriter;
 import java.rmi.RemoteException;
-import java.util.ListIterator;
-import java.util.StringTokenizer;
+import java.util.List;
+import java.util.concurrent.Future;
 
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.KeywordAnalyzer;
-import org.apache.lucene.analysis.PerFieldAnalyzerWrapper;
-import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.search.Filter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.defxws.fedoragsearch.server.Config;
-import dk.defxws.fedoragsearch.server.GTransformer;
 import dk.defxws.fedoragsearch.server.GenericOperationsImpl;
 import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
 import dk.defxws.fedoragsearch.server.utils.IOUtils;
 import dk.defxws.fedoragsearch.server.utils.Stream;
+import fedora.server.utilities.StreamUtility;
 
 /**
  * performs the Lucene specific parts of the operations
@@ -44,6 +45,9 @@ public class OperationsImpl extends GenericOperationsImpl {
     
     private static final Logger logger = LoggerFactory.getLogger(OperationsImpl.class);
     
+    /** handler reused by the transforms of this OperationsImpl */
+    private IndexDocumentHandler indexDocumentHandler;
+    
     public String gfindObjects(
             String query,
             int hitPageStart,
@@ -53,6 +57,40 @@ public class OperationsImpl extends GenericOperationsImpl {
             String indexName,
             String sortFields,
             String resultPageXslt)
+    throws java.rmi.RemoteException {
+        return gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, resultPageXslt, null);
+    }
+    
+    /**
+     * gfindObjects returning the page of hits after cursor, which is the
+     * cursor attribute of the lucenesearch element of the previous page.
+     * Only one page of hits is collected, however deep the page is.
+     * hitPageStart numbers the first hit of the page.
+     */
+    public String gfindObjectsAfter(
+            String query,
+            String cursor,
+            int hitPageStart,
+            int hitPageSize,
+            int snippetsMax,
+            int fieldMaxLength,
+            String indexName,
+            String sortFields,
+            String resultPageXslt)
+    throws java.rmi.RemoteException {
+        return gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, resultPageXslt, cursor);
+    }
+    
+    private String gfindObjects(
+            String query,
+            int hitPageStart,
+            int hitPageSize,
+            int snippetsMax,
+            int fieldMaxLength,
+            String indexName,
+            String sortFields,
+            String resultPageXslt,
+            String cursor)
     throws java.rmi.RemoteException {
         super.gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, resultPageXslt);
         String usingIndexName = config.getIndexName(indexName);
@@ -64,12 +102,20 @@ public class OperationsImpl extends GenericOperationsImpl {
                         " usingIndexName="+usingIndexName);
         }
         String usingQuery = query;
+        Filter insearchFilter = null;
         if (srf != null && config.isSearchResultFilteringActive("insearch")) {
-        	usingQuery = srf.rewriteQueryForInsearch(fgsUserName, usingIndexName, query);
+        	if (srf instanceof InsearchFilterProvider) {
+        		insearchFilter = InsearchFilterCache.getInstance().getFilter(
+        				(InsearchFilterProvider) srf, fgsUserName, usingIndexName);
+        	}
+        	if (insearchFilter == null) {
+        		usingQuery = srf.rewriteQueryForInsearch(fgsUserName, usingIndexName, query);
+        	}
             if (logger.isDebugEnabled())
                 logger.debug("gfindObjects insearch" +
                         " fgsUserName="+fgsUserName+
-                        " usingQuery="+usingQuery);
+                        " usingQuery="+usingQuery+
+                        " insearchFilter="+insearchFilter);
         }
         ResultSet resultSet = (new Connection()).createStatement().executeQuery(
         		usingQuery,
@@ -83,15 +129,24 @@ public class OperationsImpl extends GenericOperationsImpl {
                 usingIndexName,
                 config.getSnippetBegin(usingIndexName),
                 config.getSnippetEnd(usingIndexName),
-                config.getSortFields(usingIndexName, sortFields));
+                config.getSortFields(usingIndexName, sortFields),
+                cursor,
+                insearchFilter);
         params[12] = "RESULTPAGEXSLT";
         params[13] = resultPageXslt;
         String xsltPath = "/index/"+usingIndexName+"/"+config.getGfindObjectsResultXslt(usingIndexName, resultPageXslt);
-        Stream stream = (new GTransformer()).transform(
+        // the hit page is read from the result set and transformed into the
+        // buffer of the writer, without byte stream and decoding in between
+        StringWriter resultWriter = new StringWriter();
+        XsltCache.getInstance().transform(
         		xsltPath,
-        		resultSet.getResultXml(),
+        		resultSet.getSource(),
+        		new StreamResult(resultWriter),
+        		null,
                 params);
-        StringBuffer resultXml = IOUtils.convertStreamToStringBuffer(stream);
+        StringBuffer resultXml = resultWriter.getBuffer();
+        if (logger.isDebugEnabled())
+            logger.debug("gfindObjects "+ResultCache.getInstance().getStatistics());
         if (srf != null && config.isSearchResultFilteringActive("postsearch")) {
         	resultXml = srf.filterResultsetForPostsearch(fgsUserName, resultXml, config);
             if (logger.isDebugEnabled())
@@ -118,9 +173,10 @@ public class OperationsImpl extends GenericOperationsImpl {
             throw new GenericSearchException("Error "+indexInfoPath+" not found in classpath", e);
         }
         String xsltPath = "/index/"+config.getIndexName(indexName)+"/"+config.getIndexInfoResultXslt(indexName, resultPageXslt);
-        Stream stream = (new GTransformer()).transform(
+        Stream stream = XsltCache.getInstance().transform(
         		xsltPath,
                 new StreamSource(infoStream),
+                null,
                 new String[] {});
         StringBuffer sb = IOUtils.convertStreamToStringBuffer(stream);
         return sb.toString();
@@ -156,9 +212,33 @@ public class OperationsImpl extends GenericOperationsImpl {
         			else {
         				if ("fromFoxmlFiles".equals(action)) 
         					fromFoxmlFiles(value, repositoryName, indexName, resultXml, indexDocXslt, commit);
+        				else
+        				if ("fromFoxmlFilesBulk".equals(action)) 
+        					fromFoxmlFilesBulk(value, repositoryName, indexName, resultXml, indexDocXslt, commit);
+        				else
+        				if ("fromPidList".equals(action)) 
+        					fromPidList(value, repositoryName, indexName, resultXml, indexDocXslt, commit);
+        				else
+        				if ("deletePidList".equals(action)) 
+        					deletePidList(value, indexName, resultXml, commit);
+        				else
+        				if ("fromPidAsync".equals(action)) 
+        					submitAsync(AsyncIndexer.FROM_PID, value, repositoryName, indexName, resultXml, indexDocXslt);
+        				else
+        				if ("deletePidAsync".equals(action)) 
+        					submitAsync(AsyncIndexer.DELETE_PID, value, repositoryName, indexName, resultXml, indexDocXslt);
+        				else
+        				if ("asyncStatus".equals(action)) 
+        					resultXml.append(AsyncIndexer.getInstance().getStatus(this, indexName));
         				else
         					if ("optimize".equals(action)) 
-                				optimize(indexName, resultXml);
+                				optimize(value, indexName, resultXml);
+        					else
+        					if ("mergeStatus".equals(action)) 
+        						resultXml.append(IndexWriterCache.getInstance().getMergeStatus(indexName));
+        					else
+        					if ("writerStatus".equals(action)) 
+        						resultXml.append(IndexWriterCache.getInstance().getWriterStatus(indexName));
         					else
         						if("commitIndexWrites".equals(action)) {
         							commitIndexWrites(indexName, resultXml);
@@ -174,13 +254,17 @@ public class OperationsImpl extends GenericOperationsImpl {
         	}
         }
         logger.info("updateIndex "+action+" indexName="+indexName
-        		+" indexDirSpace="+indexDirSpace(new File(config.getIndexDir(indexName)))
-        		+" docCount="+docCount);
+        		+" indexDirSpace="+IndexWriterCache.getInstance().getIndexSize(indexName, config)
+        		+" docCount="+docCount
+        		+" "+XsltCache.getInstance().getStatistics()
+        		+" "+ExtractedTextCache.getInstance().getStatistics()
+        		+" "+ResultCache.getInstance().getStatistics());
         resultXml.append("<counts");
         resultXml.append(" insertTotal=\""+insertTotal+"\"");
         resultXml.append(" updateTotal=\""+updateTotal+"\"");
         resultXml.append(" deleteTotal=\""+deleteTotal+"\"");
         resultXml.append(" docCount=\""+docCount+"\"");
+        resultXml.append(" indexDirSpace=\""+IndexWriterCache.getInstance().getIndexSize(indexName, config)+"\"");
         resultXml.append(" warnCount=\""+warnCount+"\"");
         resultXml.append("/>\n");
         resultXml.append("</luceneUpdateIndex>\n");
@@ -198,7 +282,7 @@ public class OperationsImpl extends GenericOperationsImpl {
         params[10] = "RESULTPAGEXSLT";
         params[11] = resultPageXslt;
         String xsltPath = "/index/"+config.getIndexName(indexName)+"/"+config.getUpdateIndexResultXslt(indexName, resultPageXslt);
-        Stream stream = (new GTransformer()).transform(
+        Stream stream = XsltCache.getInstance().transform(
         		xsltPath,
                 resultXml,
                 params);
@@ -222,12 +306,87 @@ public class OperationsImpl extends GenericOperationsImpl {
 		resultXml.append("<deletePid pid=\"" + pid + "\"/>\n");
 	}
     
+    private void deletePidList(
+            String value,
+            String indexName,
+            StringBuffer resultXml,
+            boolean commit)
+    throws java.rmi.RemoteException {
+        List<String> pids = PidListIndexer.parsePids(indexName, value);
+        resultXml.append("<deletePidList count=\""+pids.size()+"\">\n");
+        for (String pid : pids) {
+            try {
+                IndexWriterCache.getInstance().delete(indexName, config, pid, false);
+                deleteTotal++;
+                resultXml.append("<pid value=\""+StreamUtility.enc(pid)+"\" outcome=\"deleted\"/>\n");
+            } catch (GenericSearchException e) {
+                resultXml.append("<pid value=\""+StreamUtility.enc(pid)+"\" outcome=\"failed\" exception=\""+StreamUtility.enc(e.toString())+"\"/>\n");
+            }
+        }
+        resultXml.append("</deletePidList>\n");
+        if (commit)
+        	CommitScheduler.awaitCommit(indexName, CommitScheduler.getInstance().commitAsync(indexName));
+    }
+    
+    private void fromPidList(
+            String value,
+            String repositoryName,
+            String indexName,
+            StringBuffer resultXml,
+            String indexDocXslt,
+            boolean commit)
+    throws java.rmi.RemoteException {
+        List<String> pids = PidListIndexer.parsePids(indexName, value);
+        long time = System.currentTimeMillis();
+        String[] outcomes = (new PidListIndexer(this, repositoryName, indexName, indexDocXslt)).update(pids);
+        if (commit)
+        	CommitScheduler.awaitCommit(indexName, CommitScheduler.getInstance().commitAsync(indexName));
+        int failed = 0;
+        StringBuffer pidsXml = new StringBuffer();
+        for (int i = 0; i < outcomes.length; i++) {
+            pidsXml.append("<pid value=\""+StreamUtility.enc(pids.get(i))+"\"");
+            if (outcomes[i] == null) {
+                pidsXml.append(" outcome=\"updated\"/>\n");
+            } else {
+                failed++;
+                pidsXml.append(" outcome=\"failed\" exception=\""+StreamUtility.enc(outcomes[i])+"\"/>\n");
+            }
+        }
+        logger.info("updateIndex fromPidList indexName="+indexName+" count="+pids.size()
+        		+" failed="+failed+" millis="+(System.currentTimeMillis() - time));
+        resultXml.append("<fromPidList count=\""+pids.size()+"\" failed=\""+failed+"\">\n");
+        resultXml.append(pidsXml);
+        resultXml.append("</fromPidList>\n");
+    }
+    
+    private void submitAsync(
+            String asyncAction,
+            String value,
+            String repositoryName,
+            String indexName,
+            StringBuffer resultXml,
+            String indexDocXslt)
+    throws java.rmi.RemoteException {
+        List<String> pids = PidListIndexer.parsePids(indexName, value);
+        long[] seqs = AsyncIndexer.getInstance().submit(this, indexName, asyncAction, pids, repositoryName, indexDocXslt);
+        resultXml.append("<"+asyncAction+"Async count=\""+pids.size()+"\" firstSeq=\""+seqs[0]+"\" lastSeq=\""+seqs[1]+"\"/>\n");
+    }
+    
     private void optimize(
+            String value,
             String indexName,
     		StringBuffer resultXml)
     throws java.rmi.RemoteException {
-		IndexWriterCache.getInstance().optimize(indexName, config);
-        resultXml.append("<optimize/>\n");
+        int maxSegments = IndexSettings.getInt(indexName, "merge.maxSegments", 1);
+        if (value != null && value.trim().length() > 0) {
+            try {
+                maxSegments = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                throw new GenericSearchException("updateIndex optimize value="+value+" is not a number of segments");
+            }
+        }
+		IndexWriterCache.getInstance().optimize(indexName, config, maxSegments);
+        resultXml.append("<optimize maxSegments=\""+maxSegments+"\"/>\n");
     }
     
     private void commitIndexWrites(
@@ -258,6 +417,28 @@ public class OperationsImpl extends GenericOperationsImpl {
         resultXml.append("<docCount>"+docCount+"</docCount>\n");
     }
     
+    private void fromFoxmlFilesBulk(
+            String filePath,
+            String repositoryName,
+            String indexName,
+            StringBuffer resultXml,
+            String indexDocXslt,
+    		boolean commit)
+    throws java.rmi.RemoteException {
+        if (logger.isDebugEnabled())
+            logger.debug("fromFoxmlFilesBulk filePath="+filePath+" repositoryName="+repositoryName+" indexName="+indexName);
+        File objectDir = null;
+        if (filePath==null || filePath.equals(""))
+            objectDir = config.getFedoraObjectDir(repositoryName);
+        else objectDir = new File(filePath);
+        (new BulkIndexer(this, repositoryName, indexName, indexDocXslt, resultXml)).run(objectDir);
+        if (commit)
+        	CommitScheduler.awaitCommit(indexName, CommitScheduler.getInstance().commitAsync(indexName));
+        docCount = docCount-warnCount;
+        resultXml.append("<warnCount>"+warnCount+"</warnCount>\n");
+        resultXml.append("<docCount>"+docCount+"</docCount>\n");
+    }
+    
     private void indexDocs(
             File file, 
             String repositoryName,
@@ -274,7 +455,7 @@ public class OperationsImpl extends GenericOperationsImpl {
             for (int i = 0; i < files.length; i++) {
                 if (i % 100 == 0)
                     logger.info("updateIndex fromFoxmlFiles "+file.getAbsolutePath()
-                    		+" indexDirSpace="+indexDirSpace(new File(config.getIndexDir(indexName)))
+                    		+" indexDirSpace="+IndexWriterCache.getInstance().getIndexSize(indexName, config)
                     		+" docCount="+docCount);
                 indexDocs(new File(file, files[i]), repositoryName, indexName, resultXml, indexDocXslt, commit);
             }
@@ -284,11 +465,9 @@ public class OperationsImpl extends GenericOperationsImpl {
             try {
                 indexDoc(file.getName(), repositoryName, indexName, new FileInputStream(file), resultXml, indexDocXslt, commit);
             } catch (RemoteException e) {
-                resultXml.append("<warning no=\""+(++warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>\n");
-                logger.warn("<warning no=\""+(warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>");
+                warnFile(resultXml, file, e);
             } catch (FileNotFoundException e) {
-              resultXml.append("<warning no=\""+(++warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>\n");
-              logger.warn("<warning no=\""+(warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>");
+                warnFile(resultXml, file, e);
             }
         }
     }
@@ -314,37 +493,28 @@ public class OperationsImpl extends GenericOperationsImpl {
     		StringBuffer resultXml,
     		String indexDocXslt,
     		boolean commit)
+    throws java.rmi.RemoteException {
+    	IndexDocumentHandler hdlr = transformDoc(pidOrFilename, repositoryName, indexName, foxmlStream, indexDocXslt);
+    	writeDoc(hdlr.getPid(), hdlr.getIndexDocument(), pidOrFilename, repositoryName, indexName, resultXml, commit);
+    }
+    
+    /**
+     * transforms the foxml record with the indexDocXslt and parses the
+     * resulting IndexDocument into a Lucene document. The returned handler
+     * is reused by the next call on this OperationsImpl.
+     */
+    IndexDocumentHandler transformDoc(
+    		String pidOrFilename,
+    		String repositoryName,
+    		String indexName,
+    		InputStream foxmlStream,
+    		String indexDocXslt)
     throws java.rmi.RemoteException {
     	long time = System.currentTimeMillis();
     	IndexDocumentHandler hdlr = null;
-    	String xsltName = indexDocXslt;
-    	String[] params = new String[12];
-    	int beginParams = indexDocXslt.indexOf("(");
-    	if (beginParams > -1) {
-    		xsltName = indexDocXslt.substring(0, beginParams).trim();
-    		int endParams = indexDocXslt.indexOf(")");
-    		if (endParams < beginParams)
-    			throw new GenericSearchException("Format error (no ending ')') in indexDocXslt="+indexDocXslt+": ");
-    		StringTokenizer st = new StringTokenizer(indexDocXslt.substring(beginParams+1, endParams), ",");
-    		params = new String[12+2*st.countTokens()];
-    		int i=1; 
-    		while (st.hasMoreTokens()) {
-    			String param = st.nextToken().trim();
-    			if (param==null || param.length()<1)
-    				throw new GenericSearchException("Format error (empty param) in indexDocXslt="+indexDocXslt+" params["+i+"]="+param);
-    			int eq = param.indexOf("=");
-    			if (eq < 0)
-    				throw new GenericSearchException("Format error (no '=') in indexDocXslt="+indexDocXslt+" params["+i+"]="+param);
-    			String pname = param.substring(0, eq).trim();
-    			String pvalue = param.substring(eq+1).trim();
-    			if (pname==null || pname.length()<1)
-    				throw new GenericSearchException("Format error (no param name) in indexDocXslt="+indexDocXslt+" params["+i+"]="+param);
-    			if (pvalue==null || pvalue.length()<1)
-                    throw new GenericSearchException("Format error (no param value) in indexDocXslt="+indexDocXslt+" params["+i+"]="+param);
-            	params[10+2*i] = pname;
-            	params[11+2*i++] = pvalue;
-            }
-        }
+    	XsltCache.XsltSpec xsltSpec = XsltCache.getInstance().getXsltSpec(indexDocXslt);
+    	String[] params = new String[12+xsltSpec.getParamsLength()];
+    	xsltSpec.copyParams(params, 12);
         params[0] = "REPOSITORYNAME";
         params[1] = repositoryName;
         params[2] = "FEDORASOAP";
@@ -359,12 +529,31 @@ public class OperationsImpl extends GenericOperationsImpl {
         params[11] = config.getTrustStorePass(repositoryName);
         //MIH: call method getUpdateIndexDocXsltPath
 //      String xsltPath = "/index/"+indexName+"/"+config.getUpdateIndexDocXslt(indexName, xsltName);
-        String xsltPath = getUpdateIndexDocXsltPath(xsltName);
+        String xsltPath = getUpdateIndexDocXsltPath(xsltSpec.getXsltName());
         if (logger.isDebugEnabled()) {
     		logger.debug("preparing xslt needed " + (System.currentTimeMillis() - time));
             time = System.currentTimeMillis();
         }
-    	Stream sb = (new GTransformer()).transform(
+    	if (IndexSettings.getBoolean(indexName, "indexDoc.saxPipeline", true)
+    			&& !logger.isDebugEnabled()) {
+    		// the IndexDocument goes as SAX events straight into the handler,
+    		// it is never serialized and parsed again
+    		hdlr = getIndexDocumentHandler(
+    				repositoryName,
+    				pidOrFilename);
+    		try {
+    			XsltCache.getInstance().transform(
+    					xsltPath,
+    					new StreamSource(foxmlStream),
+    					new SAXResult(hdlr),
+    					config.getURIResolver(indexName),
+    					params);
+    		} catch (GenericSearchException e) {
+    			throw new GenericSearchException("IndexDocument transform error pidOrFilename="+pidOrFilename, e);
+    		}
+    		return hdlr;
+    	}
+    	Stream sb = XsltCache.getInstance().transform(
     			xsltPath, 
     			new StreamSource(foxmlStream),
     			config.getURIResolver(indexName),
@@ -374,33 +563,61 @@ public class OperationsImpl extends GenericOperationsImpl {
     		logger.debug("IndexDocument=\n"+sb.toString());
             time = System.currentTimeMillis();
     	}
-    	hdlr = new IndexDocumentHandler(
-    			this,
+    	hdlr = getIndexDocumentHandler(
     			repositoryName,
-    			pidOrFilename,
-    			sb);
+    			pidOrFilename);
+    	hdlr.parse(sb);
         if (logger.isDebugEnabled()) {
     		logger.debug("preparing lucene-fields needed " + (System.currentTimeMillis() - time));
             time = System.currentTimeMillis();
         }
+    	return hdlr;
+    }
+    
+    /**
+     * gets the handler of this OperationsImpl, reset for a new IndexDocument.
+     * It is kept with this OperationsImpl, not with the thread, so it and
+     * its document are released together with it.
+     */
+    private IndexDocumentHandler getIndexDocumentHandler(
+    		String repositoryName,
+    		String pidOrFilename) {
+    	if (indexDocumentHandler == null) {
+    		indexDocumentHandler = new IndexDocumentHandler(this, repositoryName, pidOrFilename);
+    	} else {
+    		indexDocumentHandler.reset(this, repositoryName, pidOrFilename);
+    	}
+    	return indexDocumentHandler;
+    }
+    
+    /**
+     * writes the Lucene document of the parsed IndexDocument to the index,
+     * returns the ticket of the commit making it durable, null if the
+     * document has no fields and is not written
+     */
+    Future<Void> writeDoc(
+    		String pid,
+    		Document indexDocument,
+    		String pidOrFilename,
+    		String repositoryName,
+    		String indexName,
+    		StringBuffer resultXml,
+    		boolean commit)
+    throws java.rmi.RemoteException {
+    	long time = System.currentTimeMillis();
+    	Future<Void> ticket = null;
     	try {
-    		ListIterator li = hdlr.getIndexDocument().getFields().listIterator();
-    		if (li.hasNext()) {
-    			IndexWriterCache.getInstance().update(indexName, config, hdlr.getPid(), hdlr.getIndexDocument(), commit);
+    		if (!indexDocument.getFields().isEmpty()) {
+    			UntokenizedFieldRegistry.getInstance().register(indexName, config, indexDocument);
+    			ticket = IndexWriterCache.getInstance().update(indexName, config, pid, indexDocument, commit);
+    			synchronized (this) {
     				updateTotal++;
-        			resultXml.append("<updated>"+hdlr.getPid()+"</updated>\n");
-    			StringBuffer untokenizedFields = new StringBuffer(config.getUntokenizedFields(indexName));
-    			while (li.hasNext()) {
-    				Field f = (Field)li.next();
-    				if (!f.isTokenized() && f.isIndexed() && untokenizedFields.indexOf(f.name())<0) {
-    					untokenizedFields.append(" "+f.name());
-    					config.setUntokenizedFields(indexName, untokenizedFields.toString());
-    				}
     			}
-    			logger.info("IndexDocument="+hdlr.getPid());
+        			resultXml.append("<updated>"+pid+"</updated>\n");
+    			logger.info("IndexDocument="+pid);
     		}
     		else {
-    			logger.warn("IndexDocument "+hdlr.getPid()+" does not contain any IndexFields!!! RepositoryName="+repositoryName+" IndexName="+indexName);
+    			logger.warn("IndexDocument "+pid+" does not contain any IndexFields!!! RepositoryName="+repositoryName+" IndexName="+indexName);
     		}
     	} catch (IOException e) {
     		throw new GenericSearchException("Update error pidOrFilename="+pidOrFilename, e);
@@ -409,65 +626,69 @@ public class OperationsImpl extends GenericOperationsImpl {
         		logger.debug("writing lucene-index needed " + (System.currentTimeMillis() - time));
             }
     	}
+    	return ticket;
+    }
+    
+    /**
+     * fetches the foxml record of given pid into this OperationsImpl.
+     */
+    byte[] fetchFoxml(String pid, String repositoryName)
+    throws java.rmi.RemoteException {
+        getFoxmlFromPid(pid, repositoryName);
+        return foxmlRecord;
+    }
+    
+    /**
+     * indexes given pid without commit, for background workers, returns
+     * the ticket of the commit or null if nothing was written.
+     */
+    Future<Void> indexPid(String pid, String repositoryName, String indexName, String indexDocXslt)
+    throws java.rmi.RemoteException {
+        IndexDocumentHandler hdlr = transformDoc(pid, repositoryName, indexName, new ByteArrayInputStream(fetchFoxml(pid, repositoryName)), indexDocXslt);
+        return writeDoc(hdlr.getPid(), hdlr.getIndexDocument(), pid, repositoryName, indexName, new StringBuffer(), false);
+    }
+    
+    /**
+     * deletes given pid without commit, for background workers, returns
+     * the ticket of the commit.
+     */
+    Future<Void> deleteDoc(String pid, String indexName)
+    throws java.rmi.RemoteException {
+        return IndexWriterCache.getInstance().delete(indexName, config, pid, false);
+    }
+    
+    String getIndexDir(String indexName) {
+        return config.getIndexDir(indexName);
+    }
+    
+    /**
+     * creates an OperationsImpl for a worker thread, sharing the config of
+     * this one, because the Fedora access of GenericOperationsImpl keeps
+     * state in its fields
+     */
+    OperationsImpl newWorker() {
+        OperationsImpl worker = new OperationsImpl();
+        worker.config = config;
+        worker.fgsUserName = fgsUserName;
+        return worker;
+    }
+    
+    /**
+     * appends a warning for a foxml file which could not be indexed
+     */
+    synchronized void warnFile(StringBuffer resultXml, File file, Exception e) {
+        resultXml.append("<warning no=\""+(++warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>\n");
+        logger.warn("<warning no=\""+(warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>");
     }
     
     public Analyzer getAnalyzer(String analyzerClassName)
     throws GenericSearchException {
-        Analyzer analyzer = null;
-        if (logger.isDebugEnabled())
-            logger.debug("analyzerClassName=" + analyzerClassName);
-        try {
-            Class analyzerClass = Class.forName(analyzerClassName);
-            if (logger.isDebugEnabled())
-                logger.debug("analyzerClass=" + analyzerClass.toString());
-            analyzer = (Analyzer) analyzerClass.getConstructor(new Class[] {})
-            .newInstance(new Object[] {});
-            if (logger.isDebugEnabled())
-                logger.debug("analyzer=" + analyzer.toString());
-        } catch (ClassNotFoundException e) {
-            throw new GenericSearchException(analyzerClassName
-                    + ": class not found.\n", e);
-        } catch (InstantiationException e) {
-            throw new GenericSearchException(analyzerClassName
-                    + ": instantiation error.\n", e);
-        } catch (IllegalAccessException e) {
-            throw new GenericSearchException(analyzerClassName
-                    + ": instantiation error.\n", e);
-        } catch (InvocationTargetException e) {
-            throw new GenericSearchException(analyzerClassName
-                    + ": instantiation error.\n", e);
-        } catch (NoSuchMethodException e) {
-            throw new GenericSearchException(analyzerClassName
-                    + ": instantiation error.\n", e);
-        }
-        return analyzer;
+        return AnalyzerCache.newAnalyzer(analyzerClassName);
     }
     
     public Analyzer getQueryAnalyzer(String indexName)
     throws GenericSearchException {
-        Analyzer analyzer = getAnalyzer(config.getAnalyzer(indexName));
-        PerFieldAnalyzerWrapper pfanalyzer = new PerFieldAnalyzerWrapper(analyzer);
-    	StringTokenizer untokenizedFields = new StringTokenizer(config.getUntokenizedFields(indexName));
-    	while (untokenizedFields.hasMoreElements()) {
-    		pfanalyzer.addAnalyzer(untokenizedFields.nextToken(), new KeywordAnalyzer());
-    	}
-        if (logger.isDebugEnabled())
-            logger.debug("getQueryAnalyzer indexName=" + indexName+ " untokenizedFields="+untokenizedFields);
-        return pfanalyzer;
-    }
-    
-    private long indexDirSpace(File dir) {
-    	long ids = 0;
-        File[] files = dir.listFiles();
-        for (int i = 0; i < files.length; i++) {
-        	File f = files[i];
-            if (f.isDirectory()) {
-            	ids += indexDirSpace(f);
-            } else {
-            	ids += f.length();
-            }
-        }
-		return ids;
+        return AnalyzerCache.getInstance().getQueryAnalyzer(indexName, config);
     }
     
 }
@@ -0,0 +1,273 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+/**
+ * Indexes a list of PIDs for the updateIndex actions fromPidList and
+ * deletePidList. The foxml records are fetched and transformed by
+ * pidList.fetchThreads workers (see {@link IndexSettings}), each with its
+ * own OperationsImpl, and written to the {@link IndexWriterCache} without
+ * commit. The caller commits once for the whole list.
+ * 
+ */
+public class PidListIndexer {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(PidListIndexer.class);
+
+	/** syntax of a Fedora PID, namespace:id. */
+	private static final Pattern PID_PATTERN = Pattern
+			.compile("([A-Za-z0-9]|-|\\.)+:(([A-Za-z0-9])|-|\\.|~|_|(%[0-9A-F]{2}))+");
+
+	private static final int MAX_PID_LENGTH = 64;
+
+	private final OperationsImpl owner;
+
+	private final String repositoryName;
+
+	private final String indexName;
+
+	private final String indexDocXslt;
+
+	private final int fetchThreads;
+
+	public PidListIndexer(OperationsImpl owner, String repositoryName,
+			String indexName, String indexDocXslt) {
+		this.owner = owner;
+		this.repositoryName = repositoryName;
+		this.indexName = indexName;
+		this.indexDocXslt = indexDocXslt;
+		fetchThreads = Math.max(1, IndexSettings.getInt(indexName,
+				"pidList.fetchThreads", 4));
+	}
+
+	/**
+	 * get the PIDs of an updateIndex value, which is either a list of PIDs
+	 * separated by whitespace or commas, or the name of a file with one PID
+	 * per line in the directory of the setting pidList.dir. Files are only
+	 * read from that directory and not at all if it is not set. Empty lines
+	 * and lines starting with # are skipped, every other token must be a
+	 * PID of the form namespace:id.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param value
+	 *            PID list or file name.
+	 * @return List PIDs in given order.
+	 * @throws GenericSearchException
+	 *             if the file can not be read or a token is no PID, the
+	 *             token itself is not reported.
+	 */
+	public static List<String> parsePids(String indexName, String value)
+			throws GenericSearchException {
+		List<String> pids = new ArrayList<String>();
+		if (value == null || value.trim().length() == 0) {
+			return pids;
+		}
+		File file = getPidListFile(indexName, value.trim());
+		if (file != null) {
+			BufferedReader reader = null;
+			try {
+				reader = new BufferedReader(new InputStreamReader(
+						new FileInputStream(file), "UTF-8"));
+				String line;
+				int lineNo = 0;
+				while ((line = reader.readLine()) != null) {
+					lineNo++;
+					line = line.trim();
+					if (line.length() > 0 && !line.startsWith("#")) {
+						if (!isPid(line)) {
+							throw new GenericSearchException(
+									"updateIndex pid list file="
+											+ file.getName() + " line "
+											+ lineNo + " is no PID");
+						}
+						pids.add(line);
+					}
+				}
+			} catch (IOException e) {
+				throw new GenericSearchException("updateIndex pid list file="
+						+ file.getName() + " could not be read", e);
+			} finally {
+				if (reader != null) {
+					try {
+						reader.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+			return pids;
+		}
+		String[] tokens = value.split("[\\s,]+");
+		for (int i = 0; i < tokens.length; i++) {
+			if (tokens[i].length() > 0) {
+				if (!isPid(tokens[i])) {
+					throw new GenericSearchException(
+							"updateIndex pid list token " + (pids.size() + 1)
+									+ " is no PID");
+				}
+				pids.add(tokens[i]);
+			}
+		}
+		return pids;
+	}
+
+	/**
+	 * @return boolean whether pid has the syntax of a Fedora PID.
+	 */
+	static boolean isPid(String pid) {
+		return pid.length() <= MAX_PID_LENGTH
+				&& PID_PATTERN.matcher(pid).matches();
+	}
+
+	/**
+	 * @return File the pid list file of given name in the directory of the
+	 *         setting pidList.dir, null if there is none.
+	 */
+	private static File getPidListFile(String indexName, String name)
+			throws GenericSearchException {
+		String dirName = IndexSettings.getString(indexName, "pidList.dir",
+				null);
+		if (dirName == null) {
+			return null;
+		}
+		try {
+			File dir = new File(dirName).getCanonicalFile();
+			File file = new File(dir, name).getCanonicalFile();
+			if (!file.getPath().startsWith(dir.getPath() + File.separator)
+					|| !file.isFile()) {
+				return null;
+			}
+			return file;
+		} catch (IOException e) {
+			throw new GenericSearchException(
+					"updateIndex pid list directory error", e);
+		}
+	}
+
+	/**
+	 * fetch, transform and write the documents of given PIDs.
+	 * 
+	 * @param pids
+	 *            PIDs to index.
+	 * @return String[] outcome per PID, null if the PID was written.
+	 * @throws GenericSearchException
+	 *             if the workers could not be run.
+	 */
+	public String[] update(final List<String> pids)
+			throws GenericSearchException {
+		final String[] outcomes = new String[pids.size()];
+		final AtomicInteger next = new AtomicInteger();
+		int threads = Math.min(fetchThreads, Math.max(1, pids.size()));
+		ExecutorService pool = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(final Runnable r) {
+						Thread thread = new Thread(r, "fgslucene-pidlist-"
+								+ indexName + "-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		try {
+			List<Future<Object>> workers = new ArrayList<Future<Object>>();
+			for (int i = 0; i < threads; i++) {
+				final OperationsImpl worker = owner.newWorker();
+				workers.add(pool.submit(new Callable<Object>() {
+					public Object call() {
+						int i;
+						while ((i = next.getAndIncrement()) < outcomes.length) {
+							outcomes[i] = index(worker, pids.get(i));
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> task : workers) {
+				task.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new GenericSearchException(
+					"updateIndex pid list interrupted indexName=" + indexName,
+					e);
+		} catch (ExecutionException e) {
+			throw new GenericSearchException(
+					"updateIndex pid list error indexName=" + indexName, e
+							.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		return outcomes;
+	}
+
+	/**
+	 * index one PID, failures of the PID are returned, not thrown, so the
+	 * rest of the list is indexed.
+	 */
+	private String index(OperationsImpl worker, String pid) {
+		try {
+			byte[] foxmlRecord = worker.fetchFoxml(pid, repositoryName);
+			IndexDocumentHandler hdlr = worker.transformDoc(pid,
+					repositoryName, indexName, new ByteArrayInputStream(
+							foxmlRecord), indexDocXslt);
+			owner.writeDoc(hdlr.getPid(), hdlr.getIndexDocument(), pid,
+					repositoryName, indexName, new StringBuffer(), false);
+			return null;
+		} catch (Exception e) {
+			logger.warn("updateIndex pid list indexName=" + indexName
+					+ " pid=" + pid + " exception=" + e.toString());
+			return e.toString();
+		}
+	}
+
+}
@@ -0,0 +1,210 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Singleton caching the result XML of queries, per index in LRU order.
+ * 
+ * An entry is valid for the version of the IndexReader it was computed
+ * with, all entries of an index are dropped when a query sees a reader
+ * with another version. The cache of an index holds at most
+ * resultCache.maxEntries entries and resultCache.maxMb MB of result XML,
+ * resultCache.maxEntries=0 disables it.
+ * 
+ */
+public final class ResultCache {
+
+	private static ResultCache instance = null;
+
+	/** Holds cached results for each index. */
+	private final ConcurrentMap<String, IndexResults> indexResults = new ConcurrentHashMap<String, IndexResults>();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * private Constructor for Singleton.
+	 * 
+	 */
+	private ResultCache() {
+	}
+
+	/**
+	 * Only initialize Object once.
+	 * 
+	 * @return ResultCache ResultCache
+	 * 
+	 */
+	public static synchronized ResultCache getInstance() {
+		if (instance == null) {
+			instance = new ResultCache();
+		}
+		return instance;
+	}
+
+	/**
+	 * @param indexName
+	 *            name of index.
+	 * @return boolean whether results of given index are cached.
+	 */
+	public boolean isEnabled(final String indexName) {
+		return IndexSettings.getInt(indexName, "resultCache.maxEntries", 1000) > 0;
+	}
+
+	/**
+	 * get cached result XML.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param version
+	 *            version of the IndexReader the query runs on.
+	 * @param key
+	 *            key of the query.
+	 * @return String result XML or null.
+	 */
+	public String get(final String indexName, final long version,
+			final String key) {
+		String result = getIndexResults(indexName).get(version, key);
+		if (result == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return result;
+	}
+
+	/**
+	 * cache result XML.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param version
+	 *            version of the IndexReader the result was computed with.
+	 * @param key
+	 *            key of the query.
+	 * @param result
+	 *            result XML.
+	 */
+	public void put(final String indexName, final long version,
+			final String key, final String result) {
+		getIndexResults(indexName).put(indexName, version, key, result);
+	}
+
+	public String getStatistics() {
+		long h = hits.get();
+		long m = misses.get();
+		return "resultCache hits=" + h + " misses=" + m + " hitRate="
+				+ (h + m == 0 ? 0 : h * 100 / (h + m)) + "% evictions="
+				+ evictions.get() + " invalidations=" + invalidations.get();
+	}
+
+	private IndexResults getIndexResults(final String indexName) {
+		IndexResults results = indexResults.get(indexName);
+		if (results == null) {
+			IndexResults newResults = new IndexResults();
+			results = indexResults.putIfAbsent(indexName, newResults);
+			if (results == null) {
+				results = newResults;
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Cached results of one index for one reader version.
+	 * 
+	 */
+	private final class IndexResults {
+
+		private final LinkedHashMap<String, String> results = new LinkedHashMap<String, String>(
+				16, 0.75f, true);
+
+		private long version = -1;
+
+		private long chars = 0;
+
+		private synchronized String get(final long readerVersion,
+				final String key) {
+			if (readerVersion != version) {
+				return null;
+			}
+			return results.get(key);
+		}
+
+		private synchronized void put(final String indexName,
+				final long readerVersion, final String key, final String result) {
+			if (readerVersion < version) {
+				// computed with a reader older than the cached results
+				return;
+			}
+			if (readerVersion != version) {
+				if (!results.isEmpty()) {
+					invalidations.incrementAndGet();
+				}
+				results.clear();
+				chars = 0;
+				version = readerVersion;
+			}
+			int maxEntries = IndexSettings.getInt(indexName,
+					"resultCache.maxEntries", 1000);
+			long maxChars = IndexSettings.getLong(indexName,
+					"resultCache.maxMb", 16) * 1024 * 1024 / 2;
+			if (result.length() > maxChars) {
+				return;
+			}
+			String old = results.put(key, result);
+			if (old != null) {
+				chars -= old.length();
+			}
+			chars += result.length();
+			Iterator<Map.Entry<String, String>> iter = results.entrySet()
+					.iterator();
+			while ((results.size() > maxEntries || chars > maxChars)
+					&& iter.hasNext()) {
+				Map.Entry<String, String> eldest = iter.next();
+				chars -= eldest.getValue().length();
+				iter.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.FieldSelectorResult;
+
+/**
+ * Selects the stored fields of a hit which are shown on a result page.
+ * 
+ * The fields are the setting result.fields, a list of field names
+ * separated by blanks or commas, all stored fields if not set. Fields
+ * which are not selected are skipped in the stored fields file. Fields of
+ * the setting result.lazyFields are selected but loaded lazily. The result
+ * page shows every text field it gets, so only the binary fields among
+ * them are never read; leave a text field out of result.fields to skip it.
+ * 
+ */
+public final class ResultFieldSelector implements FieldSelector {
+
+	private static final long serialVersionUID = 1L;
+
+	/** fields to load, null for all fields. */
+	private final Set<String> fields;
+
+	private final Set<String> lazyFields;
+
+	private final String settings;
+
+	private ResultFieldSelector(final String fieldNames,
+			final String lazyFieldNames) {
+		fields = fieldNames == null ? null : toSet(fieldNames);
+		lazyFields = lazyFieldNames == null ? new HashSet<String>()
+				: toSet(lazyFieldNames);
+		if (fields != null) {
+			fields.addAll(lazyFields);
+		}
+		settings = "fields=" + fields + " lazyFields=" + lazyFields;
+	}
+
+	/**
+	 * @param indexName
+	 *            name of index.
+	 * @return ResultFieldSelector selector for the result pages of the index,
+	 *         null if all fields are to be loaded.
+	 */
+	public static ResultFieldSelector forIndex(final String indexName) {
+		String fieldNames = IndexSettings.getString(indexName,
+				"result.fields", null);
+		String lazyFieldNames = IndexSettings.getString(indexName,
+				"result.lazyFields", null);
+		if (fieldNames == null && lazyFieldNames == null) {
+			return null;
+		}
+		return new ResultFieldSelector(fieldNames, lazyFieldNames);
+	}
+
+	public FieldSelectorResult accept(final String fieldName) {
+		if (lazyFields.contains(fieldName)) {
+			return FieldSelectorResult.LAZY_LOAD;
+		}
+		if (fields == null || fields.contains(fieldName)) {
+			return FieldSelectorResult.LOAD;
+		}
+		return FieldSelectorResult.NO_LOAD;
+	}
+
+	public String toString() {
+		return settings;
+	}
+
+	private static Set<String> toSet(final String fieldNames) {
+		Set<String> set = new HashSet<String>();
+		StringTokenizer st = new StringTokenizer(fieldNames, " \t\n\r\f,");
+		while (st.hasMoreTokens()) {
+			set.add(st.nextToken());
+		}
+		return set;
+	}
+}
@@ -7,6 +7,11 @@
  */
 package dk.defxws.fgslucene;
 
+import java.io.Reader;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
 import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
 
 import org.slf4j.Logger;
@@ -23,12 +28,12 @@ public class ResultSet {
     private static final Logger logger =
         LoggerFactory.getLogger(ResultSet.class);
     
-    private StringBuffer resultXml;
+    private CharSequence resultXml;
     
     public ResultSet() {
     }
     
-    protected ResultSet(StringBuffer in)
+    protected ResultSet(CharSequence in)
     throws GenericSearchException {
         resultXml = in;
     }
@@ -40,7 +45,51 @@ public class ResultSet {
     }
     
     protected StringBuffer getResultXml() {
-        return this.resultXml;
+        if (resultXml instanceof StringBuffer)
+            return (StringBuffer) resultXml;
+        return new StringBuffer(resultXml);
+    }
+    
+    /**
+     * @return Source the result xml for a transformation, read from the
+     * result set without copying it.
+     */
+    protected Source getSource() {
+        return new StreamSource(new CharSequenceReader(resultXml));
+    }
+    
+    /**
+     * reads a CharSequence, StringReader would need a copy as a String.
+     */
+    private static final class CharSequenceReader extends Reader {
+        
+        private final CharSequence chars;
+        
+        private int next = 0;
+        
+        private CharSequenceReader(CharSequence chars) {
+            this.chars = chars;
+        }
+        
+        public int read(char[] cbuf, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (next >= chars.length())
+                return -1;
+            int n = Math.min(len, chars.length() - next);
+            if (chars instanceof StringBuffer)
+                ((StringBuffer) chars).getChars(next, next + n, cbuf, off);
+            else if (chars instanceof String)
+                ((String) chars).getChars(next, next + n, cbuf, off);
+            else
+                for (int i = 0; i < n; i++)
+                    cbuf[off + i] = chars.charAt(next + i);
+            next += n;
+            return n;
+        }
+        
+        public void close() {
+        }
     }
     
 }
@@ -0,0 +1,243 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+/**
+ * Position in the hits of a query, made of the sort values and the document
+ * number of the last hit of a page. The next page is collected by a
+ * {@link CursorCollector} from the hits after it. The cursor is passed to
+ * clients as an opaque hex string.
+ * 
+ */
+public final class SearchCursor {
+
+	private static final String VERSION = "c1";
+
+	private final Object[] values;
+
+	private final float score;
+
+	private final int doc;
+
+	private SearchCursor(Object[] values, float score, int doc) {
+		this.values = values;
+		this.score = score;
+		this.doc = doc;
+	}
+
+	/**
+	 * get the cursor after given hit.
+	 * 
+	 * @param hit
+	 *            last hit of a page, a FieldDoc if the hits are sorted by
+	 *            fields.
+	 * @return SearchCursor cursor after hit.
+	 */
+	public static SearchCursor after(ScoreDoc hit) {
+		Object[] values = hit instanceof FieldDoc ? ((FieldDoc) hit).fields
+				: new Object[0];
+		return new SearchCursor(values, hit.score, hit.doc);
+	}
+
+	/**
+	 * decode a cursor from its string form.
+	 * 
+	 * @param cursor
+	 *            string form of a cursor.
+	 * @return SearchCursor decoded cursor.
+	 * @throws GenericSearchException
+	 *             if cursor is malformed.
+	 */
+	public static SearchCursor parse(String cursor)
+			throws GenericSearchException {
+		try {
+			String decoded = new String(decodeHex(cursor), "UTF-8");
+			List<String> parts = split(decoded);
+			if (parts.size() < 3 || !VERSION.equals(parts.get(0))) {
+				throw new IllegalArgumentException("unknown version");
+			}
+			float score = Float.intBitsToFloat((int) Long.parseLong(parts
+					.get(1), 16));
+			int doc = Integer.parseInt(parts.get(2));
+			Object[] values = new Object[parts.size() - 3];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = decodeValue(parts.get(i + 3));
+			}
+			return new SearchCursor(values, score, doc);
+		} catch (RuntimeException e) {
+			throw new GenericSearchException("malformed cursor '" + cursor
+					+ "': " + e.toString());
+		} catch (UnsupportedEncodingException e) {
+			throw new GenericSearchException(e.toString());
+		}
+	}
+
+	public Object[] getValues() {
+		return values;
+	}
+
+	public float getScore() {
+		return score;
+	}
+
+	public int getDoc() {
+		return doc;
+	}
+
+	/**
+	 * @return String opaque string form of the cursor.
+	 */
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		append(sb, VERSION);
+		append(sb, Integer.toHexString(Float.floatToIntBits(score)));
+		append(sb, Integer.toString(doc));
+		for (int i = 0; i < values.length; i++) {
+			append(sb, encodeValue(values[i]));
+		}
+		try {
+			return encodeHex(sb.toString().getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String encodeValue(Object value) {
+		if (value == null) {
+			return "N";
+		} else if (value instanceof Integer) {
+			return "I" + value;
+		} else if (value instanceof Float) {
+			return "F" + Integer.toHexString(Float
+					.floatToIntBits(((Float) value).floatValue()));
+		} else if (value instanceof Long) {
+			return "L" + value;
+		} else if (value instanceof Double) {
+			return "D" + Long.toHexString(Double
+					.doubleToLongBits(((Double) value).doubleValue()));
+		} else if (value instanceof Short) {
+			return "H" + value;
+		} else if (value instanceof Byte) {
+			return "B" + value;
+		}
+		return "S" + value.toString();
+	}
+
+	private static Object decodeValue(String value) {
+		char type = value.charAt(0);
+		String v = value.substring(1);
+		switch (type) {
+		case 'N':
+			return null;
+		case 'I':
+			return Integer.valueOf(v);
+		case 'F':
+			return Float.valueOf(Float.intBitsToFloat((int) Long.parseLong(v,
+					16)));
+		case 'L':
+			return Long.valueOf(v);
+		case 'D':
+			return Double.valueOf(Double.longBitsToDouble(new BigInteger(v, 16)
+					.longValue()));
+		case 'H':
+			return Short.valueOf(v);
+		case 'B':
+			return Byte.valueOf(v);
+		case 'S':
+			return v;
+		default:
+			throw new IllegalArgumentException("unknown value type " + type);
+		}
+	}
+
+	/** appends part, escaping the separator. */
+	private static void append(StringBuilder sb, String part) {
+		if (sb.length() > 0) {
+			sb.append('|');
+		}
+		for (int i = 0; i < part.length(); i++) {
+			char c = part.charAt(i);
+			if (c == '|' || c == '\\') {
+				sb.append('\\');
+			}
+			sb.append(c);
+		}
+	}
+
+	private static List<String> split(String s) {
+		List<String> parts = new ArrayList<String>();
+		StringBuilder part = new StringBuilder();
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\' && i + 1 < s.length()) {
+				part.append(s.charAt(++i));
+			} else if (c == '|') {
+				parts.add(part.toString());
+				part.setLength(0);
+			} else {
+				part.append(c);
+			}
+		}
+		parts.add(part.toString());
+		return parts;
+	}
+
+	private static String encodeHex(byte[] bytes) {
+		char[] digits = "0123456789abcdef".toCharArray();
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (int i = 0; i < bytes.length; i++) {
+			sb.append(digits[(bytes[i] >> 4) & 0xf]).append(
+					digits[bytes[i] & 0xf]);
+		}
+		return sb.toString();
+	}
+
+	private static byte[] decodeHex(String hex) {
+		if (hex.length() % 2 != 0) {
+			throw new IllegalArgumentException("odd length");
+		}
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2),
+					16);
+		}
+		return bytes;
+	}
+
+}
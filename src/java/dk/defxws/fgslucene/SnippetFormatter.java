@@ -0,0 +1,166 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+/**
+ * Writes the marked fragments of a {@link SnippetHighlighter} to the result
+ * XML in a single pass: the text is XML-escaped, the marks are replaced by
+ * the configured snippetBegin and snippetEnd, and a last word of a fragment
+ * which is a truncated entity, i.e. starts with '&amp;' but does not end with
+ * ';', is dropped.
+ * 
+ */
+public final class SnippetFormatter {
+
+	private final String snippetBegin;
+
+	private final String snippetEnd;
+
+	public SnippetFormatter(final String snippetBegin, final String snippetEnd) {
+		this.snippetBegin = snippetBegin;
+		this.snippetEnd = snippetEnd;
+	}
+
+	/**
+	 * append the formatted fragments.
+	 * 
+	 * @param snippets
+	 *            fragments separated by {@link SnippetHighlighter#SEPARATOR}.
+	 * @param out
+	 *            result XML.
+	 * @return boolean whether anything was appended.
+	 */
+	public boolean appendSnippets(final String snippets, final StringBuffer out) {
+		if (snippets == null || snippets.length() == 0) {
+			return false;
+		}
+		int length = out.length();
+		String separator = SnippetHighlighter.SEPARATOR;
+		int from = 0;
+		while (true) {
+			int to = snippets.indexOf(separator, from);
+			boolean lastFragment = to < 0;
+			if (lastFragment) {
+				to = snippets.length();
+			}
+			appendFragment(snippets, from, trimTruncatedWord(snippets, from, to),
+					out);
+			if (lastFragment) {
+				break;
+			}
+			out.append(separator);
+			from = to + separator.length();
+		}
+		return out.length() > length;
+	}
+
+	/**
+	 * append text XML-escaped.
+	 * 
+	 * @param text
+	 *            the text.
+	 * @param begin
+	 *            index of the first character.
+	 * @param end
+	 *            index after the last character.
+	 * @param out
+	 *            result XML.
+	 */
+	public static void appendEscaped(final String text, final int begin,
+			final int end, final StringBuffer out) {
+		for (int i = begin; i < end; i++) {
+			appendEscaped(text.charAt(i), out);
+		}
+	}
+
+	private void appendFragment(final String snippets, final int begin,
+			final int end, final StringBuffer out) {
+		String beginMark = SnippetHighlighter.BEGIN_MARK;
+		String endMark = SnippetHighlighter.END_MARK;
+		int i = begin;
+		while (i < end) {
+			char c = snippets.charAt(i);
+			if (c == '!') {
+				if (snippets.startsWith(beginMark, i)
+						&& i + beginMark.length() <= end) {
+					out.append(snippetBegin);
+					i += beginMark.length();
+					continue;
+				}
+				if (snippets.startsWith(endMark, i)
+						&& i + endMark.length() <= end) {
+					out.append(snippetEnd);
+					i += endMark.length();
+					continue;
+				}
+			}
+			appendEscaped(c, out);
+			i++;
+		}
+	}
+
+	/**
+	 * @return int end of the fragment without its last word if that is a
+	 *         truncated entity.
+	 */
+	private static int trimTruncatedWord(final String snippets,
+			final int begin, final int end) {
+		int lastSpace = snippets.lastIndexOf(' ', end - 1);
+		if (lastSpace < begin) {
+			return end;
+		}
+		if (lastSpace + 1 < end && snippets.charAt(lastSpace + 1) == '&'
+				&& snippets.charAt(end - 1) != ';') {
+			return lastSpace;
+		}
+		return end;
+	}
+
+	private static void appendEscaped(final char c, final StringBuffer out) {
+		switch (c) {
+		case '&':
+			out.append("&amp;");
+			break;
+		case '<':
+			out.append("&lt;");
+			break;
+		case '>':
+			out.append("&gt;");
+			break;
+		case '"':
+			out.append("&quot;");
+			break;
+		case '\'':
+			out.append("&apos;");
+			break;
+		default:
+			out.append(c);
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.highlight.Highlighter;
+import org.apache.lucene.search.highlight.InvalidTokenOffsetsException;
+import org.apache.lucene.search.highlight.QueryScorer;
+import org.apache.lucene.search.highlight.SimpleFragmenter;
+import org.apache.lucene.search.highlight.SimpleHTMLFormatter;
+import org.apache.lucene.search.vectorhighlight.FastVectorHighlighter;
+import org.apache.lucene.search.vectorhighlight.FieldQuery;
+import org.apache.lucene.search.vectorhighlight.ScoreOrderFragmentsBuilder;
+import org.apache.lucene.search.vectorhighlight.SimpleFragListBuilder;
+
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+/**
+ * Highlights the fields of the hits of one query, the state prepared from
+ * the query is reused for all hits.
+ * 
+ * Fields with term vectors with positions and offsets are highlighted from
+ * the term vectors without analyzing the text again, if the query consists
+ * of term, phrase, boolean and disjunction queries only and the setting
+ * highlight.termVectors is not false. Other fields are analyzed, at most
+ * highlight.maxDocChars characters of each. The term vector of a field
+ * covers all its values, so the fragments of a multi-valued field are
+ * returned for its first value only. The fragments are marked with
+ * !!!SNIPPETBEGIN and !!!SNIPPETEND and separated by " ... ".
+ * 
+ */
+public final class SnippetHighlighter {
+
+	public static final String BEGIN_MARK = "!!!SNIPPETBEGIN";
+
+	public static final String END_MARK = "!!!SNIPPETEND";
+
+	public static final String SEPARATOR = " ... ";
+
+	/** minimum fragment size of the SimpleFragListBuilder. */
+	private static final int MIN_VECTOR_FRAGMENT_SIZE = 18;
+
+	private final Query query;
+
+	private final Analyzer analyzer;
+
+	private final IndexReader reader;
+
+	private final int snippetsMax;
+
+	private final int fragmentSize;
+
+	private final int maxDocChars;
+
+	private final FastVectorHighlighter vectorHighlighter;
+
+	private final FieldQuery fieldQuery;
+
+	/** analyzing highlighter of each field. */
+	private final Map<String, Highlighter> highlighters = new HashMap<String, Highlighter>();
+
+	/** fields of the current hit highlighted from their term vectors. */
+	private final Set<String> vectorFields = new HashSet<String>();
+
+	private int vectorDocId = -1;
+
+	public SnippetHighlighter(final Query query, final Analyzer analyzer,
+			final IndexReader reader, final String indexName,
+			final int snippetsMax, final int fragmentSize) {
+		this.query = query;
+		this.analyzer = analyzer;
+		this.reader = reader;
+		this.snippetsMax = snippetsMax;
+		this.fragmentSize = fragmentSize;
+		maxDocChars = IndexSettings.getInt(indexName, "highlight.maxDocChars",
+				Highlighter.DEFAULT_MAX_CHARS_TO_ANALYZE);
+		if (IndexSettings.getBoolean(indexName, "highlight.termVectors", true)
+				&& isVectorHighlightable(query)) {
+			vectorHighlighter = new FastVectorHighlighter(true, true,
+					new SimpleFragListBuilder(),
+					new ScoreOrderFragmentsBuilder(
+							new String[] { BEGIN_MARK },
+							new String[] { END_MARK }));
+			fieldQuery = vectorHighlighter.getFieldQuery(query);
+		} else {
+			vectorHighlighter = null;
+			fieldQuery = null;
+		}
+	}
+
+	/**
+	 * @param docId
+	 *            number of the hit in the reader.
+	 * @param field
+	 *            stored field of the hit.
+	 * @param value
+	 *            string value of the field.
+	 * @return String marked fragments of the field, "" if none or if
+	 *         they were returned for a previous value of the field.
+	 * @throws GenericSearchException
+	 *             if highlighting failed.
+	 */
+	public String getSnippets(final int docId, final Fieldable field,
+			final String value) throws GenericSearchException {
+		try {
+			if (vectorHighlighter != null && field.isTermVectorStored()
+					&& field.isStorePositionWithTermVector()
+					&& field.isStoreOffsetWithTermVector()) {
+				if (docId != vectorDocId) {
+					vectorDocId = docId;
+					vectorFields.clear();
+				}
+				if (!vectorFields.add(field.name())) {
+					return "";
+				}
+				String[] fragments = vectorHighlighter.getBestFragments(
+						fieldQuery, reader, docId, field.name(), Math.max(
+								MIN_VECTOR_FRAGMENT_SIZE, fragmentSize),
+						snippetsMax);
+				return join(fragments);
+			}
+			TokenStream tokenStream = analyzer.tokenStream(field.name(),
+					new StringReader(value));
+			return getHighlighter(field.name()).getBestFragments(tokenStream,
+					value, snippetsMax, SEPARATOR);
+		} catch (IOException e) {
+			throw new GenericSearchException(e.toString());
+		} catch (InvalidTokenOffsetsException e) {
+			throw new GenericSearchException(e.toString());
+		}
+	}
+
+	private Highlighter getHighlighter(final String fieldName) {
+		Highlighter highlighter = highlighters.get(fieldName);
+		if (highlighter == null) {
+			highlighter = new Highlighter(new SimpleHTMLFormatter(BEGIN_MARK,
+					END_MARK), new QueryScorer(query, fieldName));
+			highlighter.setTextFragmenter(new SimpleFragmenter(fragmentSize));
+			highlighter.setMaxDocCharsToAnalyze(maxDocChars);
+			highlighters.put(fieldName, highlighter);
+		}
+		return highlighter;
+	}
+
+	private static String join(final String[] fragments) {
+		if (fragments == null || fragments.length == 0) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder(fragments[0]);
+		for (int i = 1; i < fragments.length; i++) {
+			sb.append(SEPARATOR).append(fragments[i]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return boolean whether the term vector highlighter finds all terms of
+	 *         the query, it does not expand wildcard, prefix, fuzzy or range
+	 *         queries.
+	 */
+	private static boolean isVectorHighlightable(final Query query) {
+		if (query instanceof TermQuery || query instanceof PhraseQuery) {
+			return true;
+		}
+		if (query instanceof BooleanQuery) {
+			for (BooleanClause clause : ((BooleanQuery) query).getClauses()) {
+				if (!clause.isProhibited()
+						&& !isVectorHighlightable(clause.getQuery())) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (query instanceof DisjunctionMaxQuery) {
+			for (Query disjunct : (DisjunctionMaxQuery) query) {
+				if (!isVectorHighlightable(disjunct)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,415 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.FieldComparatorSource;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.ReaderUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.defxws.fedoragsearch.server.Config;
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+/**
+ * Singleton caching the parsed sortFields strings of each index, in LRU
+ * order with at most sortCache.maxEntries strings per index. The field
+ * names are checked against the index when a string is parsed.
+ * 
+ * {@link #warm(String, IndexReader)} loads the FieldCache entries of the
+ * default sortFields of the index and of the setting
+ * searcher.warmSortFields for a new reader, so that the first sorted query
+ * after a reopen does not load them.
+ * 
+ */
+public final class SortCache {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(SortCache.class);
+
+	private static SortCache instance = null;
+
+	/** Holds parsed sortFields for each index. */
+	private final ConcurrentMap<String, Map<String, SortField[]>> indexSorts = new ConcurrentHashMap<String, Map<String, SortField[]>>();
+
+	/**
+	 * private Constructor for Singleton.
+	 * 
+	 */
+	private SortCache() {
+	}
+
+	/**
+	 * Only initialize Object once.
+	 * 
+	 * @return SortCache SortCache
+	 * 
+	 */
+	public static synchronized SortCache getInstance() {
+		if (instance == null) {
+			instance = new SortCache();
+		}
+		return instance;
+	}
+
+	/**
+	 * get the parsed sortFields, parse them if not cached.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param sortFields
+	 *            sortFields string, may be null.
+	 * @param reader
+	 *            IndexReader for checking the field names.
+	 * @return SortField[] the sort fields, must not be modified.
+	 * @throws GenericSearchException
+	 *             if sortFields is malformed.
+	 */
+	public SortField[] getSortFields(final String indexName,
+			final String sortFields, final IndexReader reader)
+			throws GenericSearchException {
+		String key = sortFields == null ? "" : sortFields;
+		Map<String, SortField[]> sorts = getSorts(indexName);
+		SortField[] sortFieldArray;
+		synchronized (sorts) {
+			sortFieldArray = sorts.get(key);
+		}
+		if (sortFieldArray == null) {
+			sortFieldArray = parse(sortFields, reader
+					.getFieldNames(IndexReader.FieldOption.ALL));
+			synchronized (sorts) {
+				sorts.put(key, sortFieldArray);
+			}
+		}
+		return sortFieldArray;
+	}
+
+	/**
+	 * load the FieldCache entries of the sort fields to warm for each
+	 * segment of reader, failures are logged.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param reader
+	 *            new IndexReader.
+	 */
+	public void warm(final String indexName, final IndexReader reader) {
+		if (!IndexSettings.getBoolean(indexName, "searcher.warm", true)) {
+			return;
+		}
+		Set<SortField> warmFields = new LinkedHashSet<SortField>();
+		String defaultSortFields = null;
+		try {
+			defaultSortFields = Config.getCurrentConfig().getSortFields(
+					indexName, "");
+		} catch (RuntimeException e) {
+			logger.debug("warm no default sortFields indexName=" + indexName,
+					e);
+		}
+		String[] sortFieldsToWarm = new String[] { defaultSortFields,
+				IndexSettings.getString(indexName, "searcher.warmSortFields",
+						null) };
+		for (int i = 0; i < sortFieldsToWarm.length; i++) {
+			if (sortFieldsToWarm[i] == null
+					|| sortFieldsToWarm[i].trim().length() == 0) {
+				continue;
+			}
+			try {
+				SortField[] sortFields = getSortFields(indexName,
+						sortFieldsToWarm[i], reader);
+				for (int j = 0; j < sortFields.length; j++) {
+					warmFields.add(sortFields[j]);
+				}
+			} catch (GenericSearchException e) {
+				logger.warn("warm sortFields='" + sortFieldsToWarm[i]
+						+ "' indexName=" + indexName + " : " + e.getMessage());
+			}
+		}
+		if (warmFields.isEmpty()) {
+			return;
+		}
+		long time = System.currentTimeMillis();
+		List<IndexReader> segments = new ArrayList<IndexReader>();
+		ReaderUtil.gatherSubReaders(segments, reader);
+		try {
+			for (IndexReader segment : segments) {
+				for (SortField sortField : warmFields) {
+					warm(segment, sortField);
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("warm error indexName=" + indexName, e);
+		} catch (RuntimeException e) {
+			logger.warn("warm error indexName=" + indexName, e);
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("warm indexName=" + indexName + " fields="
+					+ warmFields + " segments=" + segments.size()
+					+ " millis=" + (System.currentTimeMillis() - time));
+	}
+
+	/**
+	 * load the FieldCache entry which a sort by sortField reads, entries of
+	 * custom comparators are unknown.
+	 */
+	private static void warm(final IndexReader segment,
+			final SortField sortField) throws IOException {
+		String field = sortField.getField();
+		switch (sortField.getType()) {
+		case SortField.STRING:
+			if (sortField.getLocale() == null) {
+				FieldCache.DEFAULT.getStringIndex(segment, field);
+			} else {
+				FieldCache.DEFAULT.getStrings(segment, field);
+			}
+			break;
+		case SortField.STRING_VAL:
+			FieldCache.DEFAULT.getStrings(segment, field);
+			break;
+		case SortField.INT:
+			FieldCache.DEFAULT.getInts(segment, field);
+			break;
+		case SortField.FLOAT:
+			FieldCache.DEFAULT.getFloats(segment, field);
+			break;
+		default:
+		}
+	}
+
+	private Map<String, SortField[]> getSorts(final String indexName) {
+		Map<String, SortField[]> sorts = indexSorts.get(indexName);
+		if (sorts == null) {
+			Map<String, SortField[]> newSorts = new LinkedHashMap<String, SortField[]>(
+					16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				protected boolean removeEldestEntry(
+						final Map.Entry<String, SortField[]> eldest) {
+					return size() > Math.max(1, IndexSettings.getInt(
+							indexName, "sortCache.maxEntries", 100));
+				}
+			};
+			sorts = indexSorts.putIfAbsent(indexName, newSorts);
+			if (sorts == null) {
+				sorts = newSorts;
+			}
+		}
+		return sorts;
+	}
+
+//  sortFields      ::= [sortField[';'sortField]*]
+//  sortField       ::= sortFieldName[','(sortType | locale | comparatorClass)[','reverse]]]]
+//  sortFieldName   ::= #the name of an index field, which is UN_TOKENIZED and contains a single term per document
+//  sortType        ::= 'AUTO' (default) | 'DOC' | 'SCORE' | 'INT' | 'FLOAT' | 'STRING'
+//  locale          ::= language['-'country['-'variant]]
+//  comparatorClass ::= package-path'.'className['('param['-'param]*')']
+//  reverse         ::= 'false' (default) | 'true' | 'reverse'
+	private static SortField[] parse(final String sortFields,
+			final Collection<String> fieldNames) throws GenericSearchException {
+		String sortFieldsString = sortFields;
+		if (sortFields == null) sortFieldsString = "";
+		StringTokenizer st = new StringTokenizer(sortFieldsString, ";");
+		SortField[] sortFieldArray = new SortField[st.countTokens()];
+		int i = 0;
+		while (st.hasMoreTokens()) {
+			SortField sortField = null;
+			String sortFieldString = st.nextToken().trim();
+			if (sortFieldString.length()==0)
+				errorExit("getHits sortFields='"+sortFields+"' : empty sortField string");
+			StringTokenizer stf = new StringTokenizer(sortFieldString, ",");
+			if (!stf.hasMoreTokens())
+				errorExit("getHits sortFields='"+sortFields+"' : empty sortFieldName string in '" + sortFieldString + "'");
+			String sortFieldName = stf.nextToken().trim();
+			if (sortFieldName.length()==0)
+				errorExit("getHits sortFields='"+sortFields+"' : empty sortFieldName string in '" + sortFieldString + "'");
+			if (!fieldNames.contains(sortFieldName))
+				errorExit("getHits sortFields='"+sortFields+"' : sortFieldName '" + sortFieldName + "' not found as index field name");
+			if (!stf.hasMoreTokens()) {
+				// AUTO is gone since Lucene 3, sort untyped fields as strings
+				sortField = new SortField(sortFieldName, SortField.STRING);
+			} else {
+				String sortTypeOrLocaleOrCompString = stf.nextToken().trim();
+				if (sortTypeOrLocaleOrCompString.length()==0)
+					errorExit("getHits sortFields='"+sortFields+"' : empty sortType or locale or comparatorClass string in '" + sortFieldString + "'");
+				if (sortTypeOrLocaleOrCompString.indexOf(".")>=0) {
+					String compString = sortTypeOrLocaleOrCompString;
+					String paramString = "";
+					Object[] params = new Object[] {};
+					if (sortTypeOrLocaleOrCompString.indexOf("(")>=0) {
+						int p = compString.indexOf("(");
+						int q = compString.indexOf(")");
+						if (p<3 || q<p+1)
+							errorExit("getHits sortFields='"+sortFields+"' : comparatorClass parameters malformed in '" + compString + "'.");
+						paramString = compString.substring(p+1, q);
+						compString = compString.substring(0, p);
+						StringTokenizer stp = new StringTokenizer(paramString, "-");
+						params = new Object[stp.countTokens()];
+						int ip = 0;
+						while (stp.hasMoreTokens()) {
+							params[ip++] = stp.nextToken().trim();
+						}
+					}
+					FieldComparatorSource fcs = null;
+					Class comparatorClass = null;
+					try {
+						comparatorClass = Class.forName(compString);
+					} catch (ClassNotFoundException e) {
+						errorExit("getHits sortFields='"+sortFields+"' : comparatorClass '" + compString + "'"
+								+ ": class not found:\n"+e.toString());
+					}
+					Constructor[] constructors = comparatorClass.getConstructors();
+					StringBuffer errorMessage = new StringBuffer();
+					for (int j=0; j<constructors.length; j++) {
+						Constructor cj = constructors[j];
+						try {
+							fcs = (FieldComparatorSource) cj.newInstance(params);
+							if (logger.isDebugEnabled())
+								logger.debug("getHits sortFields='"+sortFields+"' : comparatorClass '" 
+										+ compString + "'"
+										+ ": constructor["+j+"]='"+cj.toGenericString()+"'");
+							break;
+						} catch (IllegalArgumentException e) {
+							errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
+						} catch (InstantiationException e) {
+							errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
+						} catch (IllegalAccessException e) {
+							errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
+						} catch (InvocationTargetException e) {
+							errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
+						} catch (ClassCastException e) {
+							errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
+						}
+					}
+					if (fcs==null) {
+						errorExit("getHits sortFields='"+sortFields+"' : comparatorClass '" + compString + "'"
+								+ ": no constructor applied:\n"+errorMessage.toString());
+					}
+					if (!stf.hasMoreTokens()) {
+						sortField = new SortField(sortFieldName, fcs);
+					} else {
+						String reverseString = stf.nextToken().trim();
+						if (reverseString.length()==0)
+							errorExit("getHits sortFields='"+sortFields+"' : empty reverse string in '" + sortFieldString + "'");
+						boolean reverse = false;
+						if ("true".equalsIgnoreCase(reverseString)) reverse = true;
+						else if ("reverse".equalsIgnoreCase(reverseString)) reverse = true;
+						else if ("false".equalsIgnoreCase(reverseString)) reverse = false;
+						else
+							errorExit("getHits sortFields='"+sortFields+"' : unknown reverse string '" + reverseString + "' in '" + sortFieldString + "'");
+						sortField = new SortField(sortFieldName, fcs, reverse);
+					}
+				} else {
+					String sortTypeOrLocaleString = sortTypeOrLocaleOrCompString;
+					int sortType = -1;
+					Locale locale = null;
+					if ("AUTO".equals(sortTypeOrLocaleString)) sortType = SortField.STRING;
+					else if ("DOC".equals(sortTypeOrLocaleString)) sortType = SortField.DOC;
+					else if ("SCORE".equals(sortTypeOrLocaleString)) sortType = SortField.SCORE;
+					else if ("INT".equals(sortTypeOrLocaleString)) sortType = SortField.INT;
+					else if ("FLOAT".equals(sortTypeOrLocaleString)) sortType = SortField.FLOAT;
+					else if ("STRING".equals(sortTypeOrLocaleString)) sortType = SortField.STRING;
+					else if (((sortTypeOrLocaleString.substring(0, 1)).compareTo("A") >= 0) && ((sortTypeOrLocaleString.substring(0, 1)).compareTo("Z") <= 0)) {
+						errorExit("getHits sortFields='"+sortFields+"' : unknown sortType string '" + sortTypeOrLocaleString + "' in '" + sortFieldString + "'");
+					}
+					else {
+						StringTokenizer stfl = new StringTokenizer(sortTypeOrLocaleString, "-");
+						if (stfl.countTokens()>3)
+							errorExit("getHits sortFields='"+sortFields+"' : unknown locale string '" + sortTypeOrLocaleString + "' in '" + sortFieldString + "'");
+						String language = stfl.nextToken().trim();
+						if (language.length()==0)
+							errorExit("getHits sortFields='"+sortFields+"' : empty language string in '" + sortFieldString + "'");
+						if (language.length()>2)
+							errorExit("getHits sortFields='"+sortFields+"' : unknown language string '" + language + "' in '" + sortFieldString + "'");
+						if (!stfl.hasMoreTokens()) {
+							locale = new Locale(language);
+						} else {
+							String country = stfl.nextToken().trim();
+							if (country.length()==0)
+								errorExit("getHits sortFields='"+sortFields+"' : empty country string in '" + sortFieldString + "'");
+							if (country.length()>3)
+								errorExit("getHits sortFields='"+sortFields+"' : unknown country string '" + country + "' in '" + sortFieldString + "'");
+							if (!stfl.hasMoreTokens()) {
+								locale = new Locale(language, country);
+							} else {
+								String variant = stfl.nextToken().trim();
+								if (variant.length()==0)
+									errorExit("getHits sortFields='"+sortFields+"' : empty variant string in '" + sortFieldString + "'");
+								locale = new Locale(language, country, variant);
+							}
+						}
+					}
+					if (!stf.hasMoreTokens()) {
+						if (sortType >= 0)
+							sortField = new SortField(sortFieldName, sortType);
+						else
+							sortField = new SortField(sortFieldName, locale);
+					} else {
+						String reverseString = stf.nextToken().trim();
+						if (reverseString.length()==0)
+							errorExit("getHits sortFields='"+sortFields+"' : empty reverse string in '" + sortFieldString + "'");
+						boolean reverse = false;
+						if ("true".equalsIgnoreCase(reverseString)) reverse = true;
+						else if ("reverse".equalsIgnoreCase(reverseString)) reverse = true;
+						else if ("false".equalsIgnoreCase(reverseString)) reverse = false;
+						else
+							throw new GenericSearchException("getHits sortFields='"+sortFields+"' : unknown reverse string '" + reverseString + "' in '" + sortFieldString + "'");
+						if (sortType >= 0)
+							sortField = new SortField(sortFieldName, sortType, reverse);
+						else
+							sortField = new SortField(sortFieldName, locale, reverse);
+					}
+				}
+			}
+			sortFieldArray[i++] = sortField;
+		}
+		return sortFieldArray;
+	}
+
+	private static void errorExit(final String message)
+			throws GenericSearchException {
+		throw new GenericSearchException(message);
+	}
+}
@@ -8,14 +8,32 @@
 package dk.defxws.fgslucene;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.StringTokenizer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.queryParser.MultiFieldQueryParser;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TopScoreDocCollector;
 
+import de.escidoc.sb.common.Constants;
 import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
 
 /**
@@ -43,355 +61,236 @@ public class Statement {
             String snippetBegin,
             String snippetEnd, 
             String sortFields)
+    throws GenericSearchException {
+    	return executeQuery(queryString, startRecord, maxResults, snippetsMax, fieldMaxLength,
+    			analyzer, defaultQueryFields, indexPath, indexName, snippetBegin, snippetEnd,
+    			sortFields, null);
+    }
+    
+    /**
+     * executes the query and returns the page of hits after cursor, or the
+     * page starting at startRecord if cursor is empty. With a cursor only
+     * a page of hits is collected however deep it is, startRecord then only
+     * numbers the hits and hitTotal counts the hits after the cursor. The
+     * result has a cursor attribute for the next page if there are more hits.
+     */
+    public ResultSet executeQuery(
+            String queryString, 
+            int startRecord, 
+            int maxResults,
+            int snippetsMax,
+            int fieldMaxLength,
+            Analyzer analyzer, 
+            String defaultQueryFields, 
+            String indexPath, 
+            String indexName, 
+            String snippetBegin,
+            String snippetEnd, 
+            String sortFields,
+            String cursor)
+    throws GenericSearchException {
+    	return executeQuery(queryString, startRecord, maxResults, snippetsMax, fieldMaxLength,
+    			analyzer, defaultQueryFields, indexPath, indexName, snippetBegin, snippetEnd,
+    			sortFields, cursor, null);
+    }
+    
+    /**
+     * executes the query as above, finding only documents of filter if
+     * it is not null, e.g. an insearch filter of the user.
+     */
+    public ResultSet executeQuery(
+            String queryString, 
+            int startRecord, 
+            int maxResults,
+            int snippetsMax,
+            int fieldMaxLength,
+            Analyzer analyzer, 
+            String defaultQueryFields, 
+            String indexPath, 
+            String indexName, 
+            String snippetBegin,
+            String snippetEnd, 
+            String sortFields,
+            String cursor,
+            Filter filter)
     throws GenericSearchException {
     	ResultSet rs = null;
-//    	StringTokenizer defaultFieldNames = new StringTokenizer(defaultQueryFields);
-//    	int countFields = defaultFieldNames.countTokens();
-//    	String[] defaultFields = new String[countFields];
-//    	for (int i=0; i<countFields; i++) {
-//    		defaultFields[i] = defaultFieldNames.nextToken();
-//    	}
-//    	Query query = null;
-//    	if (defaultFields.length == 1) {
-//    		try {
-//    			query = (new QueryParser(defaultFields[0], analyzer)).parse(queryString);
-//    		} catch (ParseException e) {
-//    			throw new GenericSearchException(e.toString());
-//    		}
-//    	}
-//    	else {
-//    		try {
-//    			query = (new MultiFieldQueryParser(defaultFields, analyzer)).parse(queryString);
-//    		} catch (ParseException e) {
-//    			throw new GenericSearchException(e.toString());
-//    		}
-//    	}
-//    	try {
-//    		query.rewrite(IndexReader.open(indexPath));
-//    	} catch (CorruptIndexException e) {
-//    		throw new GenericSearchException(e.toString());
-//    	} catch (IOException e) {
-//    		throw new GenericSearchException(e.toString());
-//    	}
-//    	try {
-//    		searcher = new IndexSearcher(indexPath);
-//    	} catch (CorruptIndexException e) {
-//    		throw new GenericSearchException(e.toString());
-//    	} catch (IOException e) {
-//    		throw new GenericSearchException(e.toString());
-//    	}
-//    	int start = Integer.parseInt(Integer.toString(startRecord));
-//    	TopDocs hits = getHits(query, start+maxResults-1, sortFields);
-//    	ScoreDoc[] docs = hits.scoreDocs;
-//    	int end = Math.min(hits.totalHits, start + maxResults - 1);
-//    	StringBuffer resultXml = new StringBuffer();
-//    	resultXml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-//    	String queryStringEncoded = null;
-//    	try {
-//    		queryStringEncoded = URLEncoder.encode(queryString, "UTF-8");
-//    	} catch (UnsupportedEncodingException e) {
-//    		errorExit(e.toString());
-//    	}
-//    	resultXml.append("<lucenesearch "+
-//    			"   xmlns:dc=\"http://purl.org/dc/elements/1.1/"+
-//    			"\" query=\""+queryStringEncoded+
-//    			"\" indexName=\""+indexName+
-//    			"\" sortFields=\""+sortFields+
-//    			"\" hitPageStart=\""+startRecord+
-//    			"\" hitPageSize=\""+maxResults+
-//    			"\" hitTotal=\""+hits.totalHits+"\">");
-//		ScoreDoc hit = null;
-//		Document doc = null;
-//		String hitsScore = null;
-//    	for (int i = start; i <= end; i++)
-//    	{
-//    		try {
-//    			hit = docs[i-1];
-//    			doc = searcher.doc(hit.doc);
-//    			hitsScore = ""+hit.score;
-//    		} catch (CorruptIndexException e) {
-//    			errorExit(e.toString());
-//    		} catch (IOException e) {
-//    			errorExit(e.toString());
-//    		}
-//    		resultXml.append("<hit no=\""+i+ "\" score=\""+hitsScore+"\">");
-//    		for (ListIterator li = doc.getFields().listIterator(); li.hasNext(); ) {
-//    			Field f = (Field)li.next();
-//    			resultXml.append("<field name=\""+f.name()+"\"");
-//    			String snippets = null;
-//    			if (snippetsMax > 0) {
-//    				SimpleHTMLFormatter formatter = new SimpleHTMLFormatter("!!!SNIPPETBEGIN", "!!!SNIPPETEND");
-//    				QueryScorer scorer = new QueryScorer(query, f.name());
-//    				Highlighter highlighter = new Highlighter(formatter, scorer);
-//    				Fragmenter fragmenter = new SimpleFragmenter(fieldMaxLength);
-//    				highlighter.setTextFragmenter(fragmenter);
-//    				TokenStream tokenStream = analyzer.tokenStream( f.name(), new StringReader(f.stringValue()));
-//    				try {
-//    					snippets = highlighter.getBestFragments(tokenStream, f.stringValue(), snippetsMax, " ... ");
-//    				} catch (IOException e) {
-//    					errorExit(e.toString());
-//    				}
-//    				snippets = checkTruncatedWords(snippets, " ... ");
-//    				snippets = StreamUtility.enc(snippets);
-//    				snippets = snippets.replaceAll("!!!SNIPPETBEGIN", snippetBegin);
-//    				snippets = snippets.replaceAll("!!!SNIPPETEND", snippetEnd);
-//    				if (snippets!=null && !snippets.equals("")) {
-//    					resultXml.append(" snippet=\"yes\">"+snippets);
-//    				}
-//    			}
-//    			if (snippets==null || snippets.equals(""))
-//    				if (fieldMaxLength > 0 && f.stringValue().length() > fieldMaxLength) {
-//    					String snippet = f.stringValue().substring(0, fieldMaxLength);
-//    					int iamp = snippet.lastIndexOf("&");
-//    					if (iamp>-1 && iamp>fieldMaxLength-8)
-//    						snippet = snippet.substring(0, iamp);
-//    					resultXml.append(">"+StreamUtility.enc(snippet)+" ... ");
-//    				} else
-//    					resultXml.append(">"+StreamUtility.enc(f.stringValue()));
-//    			resultXml.append("</field>");
-//    		}
-//    		resultXml.append("</hit>");
-//    	}
-//    	resultXml.append("</lucenesearch>");
-//    	rs = new ResultSet(resultXml);
-//    	if (searcher!=null) {
-//    		try {
-//    			searcher.close();
-//    		} catch (IOException e) {
-//    		}
-//    	}
+    	SearchCursor after = null;
+    	if (cursor != null && cursor.trim().length() > 0) {
+    		after = SearchCursor.parse(cursor.trim());
+    	}
+    	StringTokenizer defaultFieldNames = new StringTokenizer(defaultQueryFields);
+    	int countFields = defaultFieldNames.countTokens();
+    	String[] defaultFields = new String[countFields];
+    	for (int i=0; i<countFields; i++) {
+    		defaultFields[i] = defaultFieldNames.nextToken();
+    	}
+    	Query query = null;
+    	if (defaultFields.length == 1) {
+    		try {
+    			query = (new QueryParser(Constants.LUCENE_VERSION, defaultFields[0], analyzer)).parse(queryString);
+    		} catch (ParseException e) {
+    			throw new GenericSearchException(e.toString());
+    		}
+    	}
+    	else {
+    		try {
+    			query = (new MultiFieldQueryParser(Constants.LUCENE_VERSION, defaultFields, analyzer)).parse(queryString);
+    		} catch (ParseException e) {
+    			throw new GenericSearchException(e.toString());
+    		}
+    	}
+    	ResultFieldSelector fieldSelector = ResultFieldSelector.forIndex(indexName);
+    	searcher = IndexSearcherCache.getInstance().acquire(indexName, indexPath);
+    	try {
+    		long readerVersion = searcher.getIndexReader().getVersion();
+    		String cacheKey = null;
+    		String analyzerKey = AnalyzerCache.getInstance().getCacheKey(indexName, analyzer);
+    		if (analyzerKey != null && ResultCache.getInstance().isEnabled(indexName)) {
+    			// the parsed query is the normalized form of the query string,
+    			// the analyzer key changes with the untokenized fields
+    			cacheKey = query.toString()+"\n"+sortFields+"\n"+startRecord+"\n"+maxResults
+    					+"\n"+cursor+"\n"+snippetsMax+"\n"+fieldMaxLength+"\n"+snippetBegin
+    					+"\n"+snippetEnd+"\n"+analyzerKey+"\n"+filter+"\n"+fieldSelector;
+    			String cached = ResultCache.getInstance().get(indexName, readerVersion, cacheKey);
+    			if (cached != null) {
+    				return new ResultSet(cached);
+    			}
+    		}
+    		int start = Integer.parseInt(Integer.toString(startRecord));
+    		TopDocs hits = null;
+    		int first = 0;
+    		if (after == null) {
+    			hits = getHits(indexName, query, filter, start+maxResults-1, sortFields, null);
+    			first = start - 1;
+    		} else {
+    			hits = getHits(indexName, query, filter, maxResults, sortFields, after);
+    		}
+    		ScoreDoc[] docs = hits.scoreDocs;
+    		int last = Math.min(docs.length, first + maxResults) - 1;
+    		StringBuffer resultXml = new StringBuffer();
+    		resultXml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+    		String queryStringEncoded = null;
+    		try {
+    			queryStringEncoded = URLEncoder.encode(queryString, "UTF-8");
+    		} catch (UnsupportedEncodingException e) {
+    			errorExit(e.toString());
+    		}
+    		resultXml.append("<lucenesearch "+
+    				"   xmlns:dc=\"http://purl.org/dc/elements/1.1/"+
+    				"\" query=\""+queryStringEncoded+
+    				"\" indexName=\""+indexName+
+    				"\" sortFields=\""+sortFields+
+    				"\" hitPageStart=\""+startRecord+
+    				"\" hitPageSize=\""+maxResults+
+    				"\" hitTotal=\""+hits.totalHits+"\"");
+    		if (last >= first && hits.totalHits > last + 1) {
+    			resultXml.append(" cursor=\""+SearchCursor.after(docs[last])+"\"");
+    		}
+    		resultXml.append(">");
+    		SnippetHighlighter highlighter = null;
+    		SnippetFormatter formatter = null;
+    		if (snippetsMax > 0) {
+    			highlighter = new SnippetHighlighter(query, analyzer, searcher.getIndexReader(),
+    					indexName, snippetsMax, fieldMaxLength);
+    			formatter = new SnippetFormatter(snippetBegin, snippetEnd);
+    		}
+    		ScoreDoc hit = null;
+    		Document doc = null;
+    		String hitsScore = null;
+    		for (int k = first; k <= last; k++)
+    		{
+    			int i = start + k - first;
+    			try {
+    				hit = docs[k];
+    				doc = fieldSelector == null ? searcher.doc(hit.doc) : searcher.doc(hit.doc, fieldSelector);
+    				hitsScore = ""+hit.score;
+    			} catch (CorruptIndexException e) {
+    				errorExit(e.toString());
+    			} catch (IOException e) {
+    				errorExit(e.toString());
+    			}
+    			resultXml.append("<hit no=\""+i+ "\" score=\""+hitsScore+"\">");
+    			for (Fieldable f : doc.getFields()) {
+    				if (f.isBinary()) continue;
+    				String value = f.stringValue();
+    				resultXml.append("<field name=\""+f.name()+"\"");
+    				boolean snippets = false;
+    				if (snippetsMax > 0) {
+    					int length = resultXml.length();
+    					resultXml.append(" snippet=\"yes\">");
+    					snippets = formatter.appendSnippets(highlighter.getSnippets(hit.doc, f, value), resultXml);
+    					if (!snippets) {
+    						resultXml.setLength(length);
+    					}
+    				}
+    				if (!snippets) {
+    					resultXml.append(">");
+    					if (fieldMaxLength > 0 && value.length() > fieldMaxLength) {
+    						int end = fieldMaxLength;
+    						int iamp = value.lastIndexOf('&', end - 1);
+    						if (iamp>-1 && iamp>fieldMaxLength-8)
+    							end = iamp;
+    						SnippetFormatter.appendEscaped(value, 0, end, resultXml);
+    						resultXml.append(" ... ");
+    					} else
+    						SnippetFormatter.appendEscaped(value, 0, value.length(), resultXml);
+    				}
+    				resultXml.append("</field>");
+    			}
+    			resultXml.append("</hit>");
+    		}
+    		resultXml.append("</lucenesearch>");
+    		if (cacheKey != null) {
+    			ResultCache.getInstance().put(indexName, readerVersion, cacheKey, resultXml.toString());
+    		}
+    		rs = new ResultSet(resultXml);
+    	} finally {
+    		IndexSearcherCache.getInstance().release(indexName, searcher);
+    		searcher = null;
+    	}
     	return rs;
     }
 
     private void errorExit(String message) throws GenericSearchException {
-    	if (searcher!=null) {
-    		try {
-    			searcher.close();
-    		} catch (IOException e) {
-    		}
-    	}
     	throw new GenericSearchException(message);
     }
 
-//  sortFields      ::= [sortField[';'sortField]*]
-//  sortField       ::= sortFieldName[','(sortType | locale | comparatorClass)[','reverse]]]]
-//  sortFieldName   ::= #the name of an index field, which is UN_TOKENIZED and contains a single term per document
-//  sortType        ::= 'AUTO' (default) | 'DOC' | 'SCORE' | 'INT' | 'FLOAT' | 'STRING'
-//  locale          ::= language['-'country['-'variant]]
-//  comparatorClass ::= package-path'.'className['('param['-'param]*')']
-//  reverse         ::= 'false' (default) | 'true' | 'reverse'
-    private TopDocs getHits(Query query, int numHits, String sortFields) throws GenericSearchException {
+    private TopDocs getHits(String indexName, Query query, Filter filter, int numHits, String sortFields, SearchCursor after) throws GenericSearchException {
     	TopDocs hits = null;
-//    	IndexReader ireader = searcher.getIndexReader();
-//    	Collection fieldNames = ireader.getFieldNames(IndexReader.FieldOption.ALL);
-//    	String sortFieldsString = sortFields;
-//    	if (sortFields == null) sortFieldsString = "";
-//    	StringTokenizer st = new StringTokenizer(sortFieldsString, ";");
-//    	SortField[] sortFieldArray = new SortField[st.countTokens()];
-//    	int i = 0;
-//    	while (st.hasMoreTokens()) {
-//    		SortField sortField = null;
-//    		String sortFieldString = st.nextToken().trim();
-//    		if (sortFieldString.length()==0)
-//    			errorExit("getHits sortFields='"+sortFields+"' : empty sortField string");
-//    		StringTokenizer stf = new StringTokenizer(sortFieldString, ",");
-//    		if (!stf.hasMoreTokens())
-//    			errorExit("getHits sortFields='"+sortFields+"' : empty sortFieldName string in '" + sortFieldString + "'");
-//    		String sortFieldName = stf.nextToken().trim();
-//    		if (sortFieldName.length()==0)
-//    			errorExit("getHits sortFields='"+sortFields+"' : empty sortFieldName string in '" + sortFieldString + "'");
-//    		if (!fieldNames.contains(sortFieldName))
-//    			errorExit("getHits sortFields='"+sortFields+"' : sortFieldName '" + sortFieldName + "' not found as index field name");
-//    		if (!stf.hasMoreTokens()) {
-//    			sortField = new SortField(sortFieldName);
-//    		} else {
-//    			String sortTypeOrLocaleOrCompString = stf.nextToken().trim();
-//    			if (sortTypeOrLocaleOrCompString.length()==0)
-//    				errorExit("getHits sortFields='"+sortFields+"' : empty sortType or locale or comparatorClass string in '" + sortFieldString + "'");
-//    			if (sortTypeOrLocaleOrCompString.indexOf(".")>=0) {
-//    				String compString = sortTypeOrLocaleOrCompString;
-//    				String paramString = "";
-//    				Object[] params = new Object[] {};
-//    				if (sortTypeOrLocaleOrCompString.indexOf("(")>=0) {
-//    					int p = compString.indexOf("(");
-//    					int q = compString.indexOf(")");
-//    					if (p<3 || q<p+1)
-//    						errorExit("getHits sortFields='"+sortFields+"' : comparatorClass parameters malformed in '" + compString + "'.");
-//    					paramString = compString.substring(p+1, q);
-//    					compString = compString.substring(0, p);
-//    					StringTokenizer stp = new StringTokenizer(paramString, "-");
-//    					params = new Object[stp.countTokens()];
-//    					int ip = 0;
-//    					while (stp.hasMoreTokens()) {
-//    						params[ip++] = stp.nextToken().trim();
-//    					}
-//    				}
-//    				SortComparatorSource scs = null;
-//    				Class comparatorClass = null;
-//    				try {
-//    					comparatorClass = Class.forName(compString);
-//    				} catch (ClassNotFoundException e) {
-//    					errorExit("getHits sortFields='"+sortFields+"' : comparatorClass '" + compString + "'"
-//    							+ ": class not found:\n"+e.toString());
-//    				}
-//    				Constructor[] constructors = comparatorClass.getConstructors();
-//    				StringBuffer errorMessage = new StringBuffer();
-//    				for (int j=0; j<constructors.length; j++) {
-//    					Constructor cj = constructors[j];
-//    					try {
-//    						scs = (SortComparatorSource) cj.newInstance(params);
-//    						if (logger.isDebugEnabled())
-//    							logger.debug("getHits sortFields='"+sortFields+"' : comparatorClass '" 
-//    									+ compString + "'"
-//    									+ ": constructor["+j+"]='"+cj.toGenericString()+"'");
-//    						break;
-//    					} catch (IllegalArgumentException e) {
-//    						errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
-//    					} catch (InstantiationException e) {
-//    						errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
-//    					} catch (IllegalAccessException e) {
-//    						errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
-//    					} catch (InvocationTargetException e) {
-//    						errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
-//    					}
-//    				}
-//    				if (scs==null) {
-//    					errorExit("getHits sortFields='"+sortFields+"' : comparatorClass '" + compString + "'"
-//    							+ ": no constructor applied:\n"+errorMessage.toString());
-//    				}
-//    				if (!stf.hasMoreTokens()) {
-//    					sortField = new SortField(sortFieldName, scs);
-//    				} else {
-//    					String reverseString = stf.nextToken().trim();
-//    					if (reverseString.length()==0)
-//    						errorExit("getHits sortFields='"+sortFields+"' : empty reverse string in '" + sortFieldString + "'");
-//    					boolean reverse = false;
-//    					if ("true".equalsIgnoreCase(reverseString)) reverse = true;
-//    					else if ("reverse".equalsIgnoreCase(reverseString)) reverse = true;
-//    					else if ("false".equalsIgnoreCase(reverseString)) reverse = false;
-//    					else
-//    						errorExit("getHits sortFields='"+sortFields+"' : unknown reverse string '" + reverseString + "' in '" + sortFieldString + "'");
-//    					sortField = new SortField(sortFieldName, scs, reverse);
-//    				}
-//    			} else {
-//    				String sortTypeOrLocaleString = sortTypeOrLocaleOrCompString;
-//    				int sortType = -1;
-//    				Locale locale = null;
-//    				if ("AUTO".equals(sortTypeOrLocaleString)) sortType = SortField.AUTO;
-//    				else if ("DOC".equals(sortTypeOrLocaleString)) sortType = SortField.DOC;
-//    				else if ("SCORE".equals(sortTypeOrLocaleString)) sortType = SortField.SCORE;
-//    				else if ("INT".equals(sortTypeOrLocaleString)) sortType = SortField.INT;
-//    				else if ("FLOAT".equals(sortTypeOrLocaleString)) sortType = SortField.FLOAT;
-//    				else if ("STRING".equals(sortTypeOrLocaleString)) sortType = SortField.STRING;
-//    				else if (((sortTypeOrLocaleString.substring(0, 1)).compareTo("A") >= 0) && ((sortTypeOrLocaleString.substring(0, 1)).compareTo("Z") <= 0)) {
-//    					errorExit("getHits sortFields='"+sortFields+"' : unknown sortType string '" + sortTypeOrLocaleString + "' in '" + sortFieldString + "'");
-//    				}
-//    				else {
-//    					StringTokenizer stfl = new StringTokenizer(sortTypeOrLocaleString, "-");
-//    					if (stfl.countTokens()>3)
-//    						errorExit("getHits sortFields='"+sortFields+"' : unknown locale string '" + sortTypeOrLocaleString + "' in '" + sortFieldString + "'");
-//    					String language = stfl.nextToken().trim();
-//    					if (language.length()==0)
-//    						errorExit("getHits sortFields='"+sortFields+"' : empty language string in '" + sortFieldString + "'");
-//    					if (language.length()>2)
-//    						errorExit("getHits sortFields='"+sortFields+"' : unknown language string '" + language + "' in '" + sortFieldString + "'");
-//    					if (!stfl.hasMoreTokens()) {
-//    						locale = new Locale(language);
-//    					} else {
-//    						String country = stfl.nextToken().trim();
-//    						if (country.length()==0)
-//    							errorExit("getHits sortFields='"+sortFields+"' : empty country string in '" + sortFieldString + "'");
-//    						if (country.length()>3)
-//    							errorExit("getHits sortFields='"+sortFields+"' : unknown country string '" + country + "' in '" + sortFieldString + "'");
-//    						if (!stfl.hasMoreTokens()) {
-//    							locale = new Locale(language, country);
-//    						} else {
-//    							String variant = stfl.nextToken().trim();
-//    							if (variant.length()==0)
-//    								errorExit("getHits sortFields='"+sortFields+"' : empty variant string in '" + sortFieldString + "'");
-//    							locale = new Locale(language, country, variant);
-//    						}
-//    					}
-//    				}
-//    				if (!stf.hasMoreTokens()) {
-//    					if (sortType >= 0)
-//    						sortField = new SortField(sortFieldName, sortType);
-//    					else
-//    						sortField = new SortField(sortFieldName, locale);
-//    				} else {
-//    					String reverseString = stf.nextToken().trim();
-//    					if (reverseString.length()==0)
-//    						errorExit("getHits sortFields='"+sortFields+"' : empty reverse string in '" + sortFieldString + "'");
-//    					boolean reverse = false;
-//    					if ("true".equalsIgnoreCase(reverseString)) reverse = true;
-//    					else if ("reverse".equalsIgnoreCase(reverseString)) reverse = true;
-//    					else if ("false".equalsIgnoreCase(reverseString)) reverse = false;
-//    					else
-//    						throw new GenericSearchException("getHits sortFields='"+sortFields+"' : unknown reverse string '" + reverseString + "' in '" + sortFieldString + "'");
-//    					if (sortType >= 0)
-//    						sortField = new SortField(sortFieldName, sortType, reverse);
-//    					else
-//    						sortField = new SortField(sortFieldName, locale, reverse);
-//    				}
-//    			}
-//    		}
-//    		sortFieldArray[i++] = sortField;
-//    	}
-//    	Sort sort = new Sort(sortFieldArray);
-//    	TopDocCollector collector = null;
-//    	if (sortFieldArray.length == 0) {
-//    		collector = new TopDocCollector(numHits);
-//    	} else {
-//    		try {
-//    			collector = new TopFieldDocCollector( ireader, sort, numHits);
-//    		} catch (IOException e) {
-//    			errorExit("getHits TopFieldDocCollector sortFields='"+sortFields+"' : "+e.toString());
-//    		} catch (RuntimeException e) {
-//    			errorExit("getHits TopFieldDocCollector RuntimeException sortFields='"+sortFields+"' : "+e.toString());
-//    		}
-//    	}
-//    	try {
-//    		searcher.search(query, collector);
-//    	} catch (IOException e) {
-//    		errorExit("getHits search sortFields='"+sortFields+"' : "+e.toString());
-//    	} catch (RuntimeException e) {
-//    		errorExit("getHits search RuntimeException sortFields='"+sortFields+"' : "+e.toString());
-//    	}
-//    	hits = collector.topDocs();
-    	return hits;
-    }
-
-    //	contributed by Leire Urcelay
-    private String checkTruncatedWords(String snippets, String separator) {
-    	String transformedSnippets = "";
-
-    	if (snippets!=null && !snippets.equals("")) {
-    		int separatorIndex = snippets.indexOf(separator);
-    		while (separatorIndex > -1 ) {
-    			transformedSnippets = transformedSnippets.concat(removeLastWordIfNeeded(snippets.substring(0, separatorIndex)));
-    			transformedSnippets = transformedSnippets.concat(separator);
-    			snippets = snippets.substring(separatorIndex + separator.length());    			
-    			separatorIndex = snippets.indexOf(separator);
+    	SortField[] sortFieldArray = SortCache.getInstance().getSortFields(indexName, sortFields, searcher.getIndexReader());
+    	Sort sort = new Sort(sortFieldArray);
+    	TopDocsCollector<? extends ScoreDoc> collector = null;
+    	if (sortFieldArray.length == 0) {
+    		collector = TopScoreDocCollector.create(Math.max(1, numHits), false);
+    	} else {
+    		try {
+    			collector = TopFieldCollector.create(sort, Math.max(1, numHits), true, true, false, false);
+    		} catch (IOException e) {
+    			errorExit("getHits TopFieldCollector sortFields='"+sortFields+"' : "+e.toString());
+    		} catch (RuntimeException e) {
+    			errorExit("getHits TopFieldCollector RuntimeException sortFields='"+sortFields+"' : "+e.toString());
     		}
-    		//add last node
-    		snippets = removeLastWordIfNeeded(snippets.substring(0, snippets.length()));
-    		transformedSnippets = transformedSnippets.concat(snippets);
     	}
-    	else {
-    		transformedSnippets = snippets;
+    	Collector pageCollector = collector;
+    	if (after != null) {
+    		try {
+    			pageCollector = new CursorCollector(collector, sortFieldArray, after);
+    		} catch (IOException e) {
+    			errorExit("getHits cursor sortFields='"+sortFields+"' : "+e.toString());
+    		} catch (RuntimeException e) {
+    			errorExit("getHits cursor sortFields='"+sortFields+"' : "+e.toString());
+    		}
     	}
-    	return transformedSnippets;
-    }
-
-    private String removeLastWordIfNeeded(String snippetsFragment) {
-    	int lastWordIndex = snippetsFragment.lastIndexOf(" ");
-    	if ((lastWordIndex > -1) && (lastWordIndex + 1  <= snippetsFragment.length())) {
-    		String lastWord = snippetsFragment.substring(lastWordIndex + 1, snippetsFragment.length());
-    		if ((lastWord.startsWith("&")) && (!lastWord.endsWith(";"))) {
-    			snippetsFragment = snippetsFragment.substring(0, lastWordIndex);    			
-    		}	
+    	try {
+    		searcher.search(query, filter, pageCollector);
+    	} catch (IOException e) {
+    		errorExit("getHits search sortFields='"+sortFields+"' : "+e.toString());
+    	} catch (RuntimeException e) {
+    		errorExit("getHits search RuntimeException sortFields='"+sortFields+"' : "+e.toString());
     	}
-    	return snippetsFragment;
+    	hits = collector.topDocs();
+    	return hits;
     }
     
     void close() throws GenericSearchException {
@@ -0,0 +1,250 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockFactory;
+
+/**
+ * Directory limiting the write rate of merges to a number of MB per second.
+ * Files created by threads of the {@link ManagedMergeScheduler} are written
+ * through a throttled IndexOutput, all other operations go straight to the
+ * wrapped Directory, so flushes of updates are never slowed down. All
+ * throttled outputs share one rate, so the limit holds for all files of
+ * all concurrent merges of the index together.
+ * 
+ */
+public class ThrottledDirectory extends Directory {
+
+	/** bytes written between two checks of the rate. */
+	private static final int CHECK_BYTES = 64 * 1024;
+
+	private final Directory delegate;
+
+	private final double nanosPerByte;
+
+	private final AtomicLong mergeBytes = new AtomicLong();
+
+	/** time at which the bytes written so far are within the rate. */
+	private long nextNanos = System.nanoTime();
+
+	public ThrottledDirectory(Directory delegate, double mbPerSec) {
+		this.delegate = delegate;
+		this.nanosPerByte = 1000000000d / (mbPerSec * 1024 * 1024);
+	}
+
+	public Directory getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * @return long bytes written by merges.
+	 */
+	public long getMergeBytes() {
+		return mergeBytes.get();
+	}
+
+	public IndexOutput createOutput(String name) throws IOException {
+		IndexOutput out = delegate.createOutput(name);
+		if (ManagedMergeScheduler.isMergeThread()) {
+			return new ThrottledIndexOutput(out);
+		}
+		return out;
+	}
+
+	public String[] listAll() throws IOException {
+		return delegate.listAll();
+	}
+
+	public boolean fileExists(String name) throws IOException {
+		return delegate.fileExists(name);
+	}
+
+	public long fileModified(String name) throws IOException {
+		return delegate.fileModified(name);
+	}
+
+	@Deprecated
+	public void touchFile(String name) throws IOException {
+		delegate.touchFile(name);
+	}
+
+	public void deleteFile(String name) throws IOException {
+		delegate.deleteFile(name);
+	}
+
+	public long fileLength(String name) throws IOException {
+		return delegate.fileLength(name);
+	}
+
+	@Deprecated
+	public void sync(String name) throws IOException {
+		delegate.sync(name);
+	}
+
+	public void sync(Collection<String> names) throws IOException {
+		delegate.sync(names);
+	}
+
+	public IndexInput openInput(String name) throws IOException {
+		return delegate.openInput(name);
+	}
+
+	public IndexInput openInput(String name, int bufferSize)
+			throws IOException {
+		return delegate.openInput(name, bufferSize);
+	}
+
+	public Lock makeLock(String name) {
+		return delegate.makeLock(name);
+	}
+
+	public void clearLock(String name) throws IOException {
+		delegate.clearLock(name);
+	}
+
+	public void setLockFactory(LockFactory lockFactory) throws IOException {
+		delegate.setLockFactory(lockFactory);
+	}
+
+	public LockFactory getLockFactory() {
+		return delegate.getLockFactory();
+	}
+
+	public String getLockID() {
+		return delegate.getLockID();
+	}
+
+	public void close() throws IOException {
+		delegate.close();
+	}
+
+	public String toString() {
+		return "ThrottledDirectory(" + delegate.toString() + ")";
+	}
+
+	/**
+	 * account bytes written by a merge and sleep until they are within the
+	 * rate.
+	 * 
+	 * @param bytes
+	 *            number of bytes written.
+	 * @throws IOException
+	 *             if interrupted while sleeping.
+	 */
+	private void pause(int bytes) throws IOException {
+		mergeBytes.addAndGet(bytes);
+		long now = System.nanoTime();
+		long target;
+		synchronized (this) {
+			// idle time is not saved up for later bursts
+			nextNanos = Math.max(nextNanos, now)
+					+ (long) (bytes * nanosPerByte);
+			target = nextNanos;
+		}
+		long sleepMillis = (target - now) / 1000000;
+		if (sleepMillis > 0) {
+			try {
+				Thread.sleep(sleepMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("merge throttling interrupted");
+			}
+		}
+	}
+
+	/**
+	 * IndexOutput sleeping whenever the merges are ahead of the allowed
+	 * rate.
+	 * 
+	 */
+	private final class ThrottledIndexOutput extends IndexOutput {
+
+		private final IndexOutput out;
+
+		private int unchecked = 0;
+
+		private ThrottledIndexOutput(IndexOutput out) {
+			this.out = out;
+		}
+
+		public void writeByte(byte b) throws IOException {
+			out.writeByte(b);
+			count(1);
+		}
+
+		public void writeBytes(byte[] b, int offset, int length)
+				throws IOException {
+			out.writeBytes(b, offset, length);
+			count(length);
+		}
+
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		public void close() throws IOException {
+			out.close();
+		}
+
+		public long getFilePointer() {
+			return out.getFilePointer();
+		}
+
+		public void seek(long pos) throws IOException {
+			out.seek(pos);
+		}
+
+		public long length() throws IOException {
+			return out.length();
+		}
+
+		public void setLength(long length) throws IOException {
+			out.setLength(length);
+		}
+
+		private void count(int bytes) throws IOException {
+			unchecked += bytes;
+			if (unchecked < CHECK_BYTES) {
+				return;
+			}
+			int checked = unchecked;
+			unchecked = 0;
+			pause(checked);
+		}
+	}
+
+}
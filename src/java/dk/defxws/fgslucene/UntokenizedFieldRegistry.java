@@ -0,0 +1,221 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.Directory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.defxws.fedoragsearch.server.Config;
+
+/**
+ * Singleton holding the untokenized fields of each index.
+ * 
+ * The fields of an index are seeded from the config and from the commit
+ * user data of the index, so the query Analyzer knows them right after
+ * startup. Fields found in written documents are added to a concurrent
+ * set and stored in the commit user data with every commit.
+ * 
+ */
+public final class UntokenizedFieldRegistry {
+
+	/** Key of the untokenized fields in the commit user data. */
+	public static final String USER_DATA_KEY = "fgslucene.untokenizedFields";
+
+	private static UntokenizedFieldRegistry instance = null;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(UntokenizedFieldRegistry.class);
+
+	/** Holds untokenized fields for each index. */
+	private final ConcurrentMap<String, IndexFields> indexFields = new ConcurrentHashMap<String, IndexFields>();
+
+	/**
+	 * private Constructor for Singleton.
+	 * 
+	 */
+	private UntokenizedFieldRegistry() {
+	}
+
+	/**
+	 * Only initialize Object once.
+	 * 
+	 * @return UntokenizedFieldRegistry UntokenizedFieldRegistry
+	 * 
+	 */
+	public static synchronized UntokenizedFieldRegistry getInstance() {
+		if (instance == null) {
+			instance = new UntokenizedFieldRegistry();
+		}
+		return instance;
+	}
+
+	/**
+	 * register the indexed, untokenized fields of given document.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param config
+	 *            gsearch config-Object.
+	 * @param doc
+	 *            document to write.
+	 * @return boolean true if a new field was registered.
+	 */
+	public boolean register(final String indexName, final Config config,
+			final Document doc) {
+		IndexFields fields = getIndexFields(indexName, config);
+		boolean added = false;
+		for (Fieldable f : doc.getFields()) {
+			if (!f.isTokenized() && f.isIndexed() && fields.names.add(f.name())) {
+				added = true;
+			}
+		}
+		if (added) {
+			String joined = fields.rebuild();
+			synchronized (config) {
+				config.setUntokenizedFields(indexName, joined);
+			}
+			if (logger.isDebugEnabled())
+				logger.debug("register indexName=" + indexName
+						+ " untokenizedFields=" + joined);
+		}
+		return added;
+	}
+
+	/**
+	 * get the untokenized fields of given indexName.
+	 * The same String instance is returned until a field is added.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @param config
+	 *            gsearch config-Object.
+	 * @return String space separated field names.
+	 */
+	public String getFields(final String indexName, final Config config) {
+		return getIndexFields(indexName, config).joined;
+	}
+
+	/**
+	 * get the commit user data storing the untokenized fields of
+	 * given indexName.
+	 * 
+	 * @param indexName
+	 *            name of index.
+	 * @return Map commit user data or null if the fields are not loaded.
+	 */
+	public Map<String, String> getCommitUserData(final String indexName) {
+		IndexFields fields = indexFields.get(indexName);
+		if (fields == null) {
+			return null;
+		}
+		Map<String, String> userData = new HashMap<String, String>();
+		userData.put(USER_DATA_KEY, fields.joined);
+		return userData;
+	}
+
+	private IndexFields getIndexFields(final String indexName,
+			final Config config) {
+		IndexFields fields = indexFields.get(indexName);
+		if (fields != null) {
+			return fields;
+		}
+		IndexFields loaded = new IndexFields();
+		loaded.addAll(config.getUntokenizedFields(indexName));
+		loaded.addAll(readCommitUserData(indexName, config));
+		loaded.rebuild();
+		fields = indexFields.putIfAbsent(indexName, loaded);
+		return fields == null ? loaded : fields;
+	}
+
+	private String readCommitUserData(final String indexName,
+			final Config config) {
+		try {
+			Directory directory = DirectoryCache.getInstance().getDirectory(
+					indexName, config);
+			if (!IndexReader.indexExists(directory)) {
+				return null;
+			}
+			Map<String, String> userData = IndexReader
+					.getCommitUserData(directory);
+			return userData == null ? null : userData.get(USER_DATA_KEY);
+		} catch (Exception e) {
+			logger.warn("readCommitUserData indexName=" + indexName
+					+ " could not read untokenized fields: " + e.toString());
+			return null;
+		}
+	}
+
+
+	/**
+	 * Untokenized fields of one index.
+	 * 
+	 */
+	private static final class IndexFields {
+
+		private final Set<String> names = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		private volatile String joined = "";
+
+		private void addAll(final String fieldNames) {
+			if (fieldNames == null) {
+				return;
+			}
+			StringTokenizer st = new StringTokenizer(fieldNames);
+			while (st.hasMoreTokens()) {
+				names.add(st.nextToken());
+			}
+		}
+
+		private synchronized String rebuild() {
+			StringBuilder sb = new StringBuilder();
+			for (String name : names) {
+				if (sb.length() > 0) {
+					sb.append(' ');
+				}
+				sb.append(name);
+			}
+			joined = sb.toString();
+			return joined;
+		}
+	}
+
+}
@@ -0,0 +1,502 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.defxws.fedoragsearch.server.Config;
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+import dk.defxws.fedoragsearch.server.utils.Stream;
+
+/**
+ * Singleton for caching compiled stylesheets, keyed by xslt path and
+ * URIResolver class. Config creates a new URIResolver on every call, so
+ * the instance cannot be part of the key.
+ * 
+ * Replaces GTransformer, which compiles the stylesheet on every call.
+ * The stylesheet is loaded the way GTransformer loads it, with
+ * Config.getResourceInputStream. At most every xslt.checkInterval
+ * milliseconds it is read again and recompiled if its content changed,
+ * 0 disables the check. At most xslt.maxTemplates stylesheets are kept.
+ * The parsed parameter specs of indexDocXslt values are cached as well.
+ * 
+ */
+public final class XsltCache {
+
+	private static XsltCache instance = null;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(XsltCache.class);
+
+	/** bound for the number of cached indexDocXslt specs. */
+	private static final int MAX_SPECS = 1000;
+
+	/** Holds compiled stylesheet for each xslt path and URIResolver class. */
+	private final ConcurrentMap<Key, CachedTemplates> templates = new ConcurrentHashMap<Key, CachedTemplates>();
+
+	/** Holds parsed spec for each indexDocXslt value. */
+	private final ConcurrentMap<String, XsltSpec> specs = new ConcurrentHashMap<String, XsltSpec>();
+
+	private final long checkInterval;
+
+	private final int maxTemplates;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * private Constructor for Singleton.
+	 * 
+	 */
+	private XsltCache() {
+		checkInterval = IndexSettings.getLong(null, "xslt.checkInterval",
+				1000);
+		maxTemplates = IndexSettings.getInt(null, "xslt.maxTemplates", 100);
+	}
+
+	/**
+	 * Only initialize Object once.
+	 * 
+	 * @return XsltCache XsltCache
+	 * 
+	 */
+	public static synchronized XsltCache getInstance() {
+		if (instance == null) {
+			instance = new XsltCache();
+		}
+		return instance;
+	}
+
+	/**
+	 * transform xml with the stylesheet of given xsltPath.
+	 * 
+	 * @param xsltPath
+	 *            path of stylesheet without extension .xslt.
+	 * @param xml
+	 *            xml to transform.
+	 * @param params
+	 *            stylesheet parameters, names and values alternating.
+	 * @return Stream the transformation result.
+	 * @throws GenericSearchException
+	 *             e
+	 */
+	public Stream transform(final String xsltPath, final StringBuffer xml,
+			final String[] params) throws GenericSearchException {
+		return transform(xsltPath, new StreamSource(new StringReader(xml
+				.toString())), null, params);
+	}
+
+	/**
+	 * transform source with the stylesheet of given xsltPath.
+	 * 
+	 * @param xsltPath
+	 *            path of stylesheet without extension .xslt.
+	 * @param source
+	 *            xml to transform.
+	 * @param uriResolver
+	 *            URIResolver for document(), xsl:include and xsl:import,
+	 *            may be null.
+	 * @param params
+	 *            stylesheet parameters, names and values alternating.
+	 * @return Stream the transformation result.
+	 * @throws GenericSearchException
+	 *             e
+	 */
+	public Stream transform(final String xsltPath, final Source source,
+			final URIResolver uriResolver, final String[] params)
+			throws GenericSearchException {
+		Stream stream = new Stream();
+		transform(xsltPath, source, new StreamResult(stream), uriResolver,
+				params);
+		return stream;
+	}
+
+	/**
+	 * transform source with the stylesheet of given xsltPath into result.
+	 * 
+	 * @param xsltPath
+	 *            path of stylesheet without extension .xslt.
+	 * @param source
+	 *            xml to transform.
+	 * @param result
+	 *            receives the transformation result.
+	 * @param uriResolver
+	 *            URIResolver for document(), xsl:include and xsl:import,
+	 *            may be null.
+	 * @param params
+	 *            stylesheet parameters, names and values alternating.
+	 * @throws GenericSearchException
+	 *             e
+	 */
+	public void transform(final String xsltPath, final Source source,
+			final Result result, final URIResolver uriResolver,
+			final String[] params) throws GenericSearchException {
+		Transformer transformer;
+		try {
+			transformer = getTemplates(xsltPath, uriResolver)
+					.newTransformer();
+		} catch (TransformerException e) {
+			throw new GenericSearchException("new transformer error xsltPath="
+					+ xsltPath + " :\n", e);
+		}
+		if (uriResolver != null) {
+			transformer.setURIResolver(uriResolver);
+		}
+		if (params != null) {
+			for (int i = 0; i + 1 < params.length; i += 2) {
+				if (params[i] != null) {
+					transformer.setParameter(params[i],
+							params[i + 1] == null ? "" : params[i + 1]);
+				}
+			}
+		}
+		try {
+			transformer.transform(source, result);
+		} catch (TransformerException e) {
+			throw new GenericSearchException("transform error xsltPath="
+					+ xsltPath + " :\n", e);
+		}
+	}
+
+	/**
+	 * get compiled stylesheet of given xsltPath, compiled again if the
+	 * stylesheet file changed.
+	 * 
+	 * @param xsltPath
+	 *            path of stylesheet without extension .xslt.
+	 * @param uriResolver
+	 *            URIResolver for xsl:include and xsl:import, may be null.
+	 * @return Templates compiled stylesheet.
+	 * @throws GenericSearchException
+	 *             e
+	 */
+	public Templates getTemplates(final String xsltPath,
+			final URIResolver uriResolver) throws GenericSearchException {
+		Key key = new Key(xsltPath, uriResolver);
+		CachedTemplates cached = templates.get(key);
+		if (cached != null && !isModified(xsltPath, cached)) {
+			hits.incrementAndGet();
+			return cached.templates;
+		}
+		synchronized (this) {
+			CachedTemplates current = templates.get(key);
+			if (current != null && current != cached) {
+				hits.incrementAndGet();
+				return current.templates;
+			}
+			misses.incrementAndGet();
+			cached = compile(xsltPath, readStylesheet(xsltPath), uriResolver);
+			if (current == null && templates.size() >= maxTemplates) {
+				templates.clear();
+			}
+			templates.put(key, cached);
+			logger.info("compiled xsltPath=" + xsltPath + " " + getStatistics());
+			return cached.templates;
+		}
+	}
+
+	/**
+	 * get parsed spec of an indexDocXslt value name(p1=v1,...).
+	 * 
+	 * @param indexDocXslt
+	 *            name of stylesheet, optionally followed by parameters.
+	 * @return XsltSpec stylesheet name and parameters.
+	 * @throws GenericSearchException
+	 *             if the parameters are malformed.
+	 */
+	public XsltSpec getXsltSpec(final String indexDocXslt)
+			throws GenericSearchException {
+		XsltSpec spec = specs.get(indexDocXslt);
+		if (spec == null) {
+			spec = parseXsltSpec(indexDocXslt);
+			if (specs.size() >= MAX_SPECS) {
+				specs.clear();
+			}
+			specs.put(indexDocXslt, spec);
+		}
+		return spec;
+	}
+
+	/**
+	 * get hit and miss counters of the stylesheet cache.
+	 * 
+	 * @return String counters for logging.
+	 */
+	public String getStatistics() {
+		return "xsltCache hits=" + hits.get() + " misses=" + misses.get()
+				+ " size=" + templates.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * check if the stylesheet content changed since compiling it, read
+	 * again at most every checkInterval milliseconds.
+	 */
+	private boolean isModified(final String xsltPath,
+			final CachedTemplates cached) throws GenericSearchException {
+		if (checkInterval <= 0) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		if (now - cached.lastCheck < checkInterval) {
+			return false;
+		}
+		cached.lastCheck = now;
+		return !Arrays.equals(cached.digest, digest(readStylesheet(xsltPath)));
+	}
+
+	/**
+	 * read the stylesheet from where GTransformer reads it.
+	 */
+	private byte[] readStylesheet(final String xsltPath)
+			throws GenericSearchException {
+		String xsltPathName = xsltPath + ".xslt";
+		InputStream stylesheet = null;
+		try {
+			stylesheet = Config.getCurrentConfig().getResourceInputStream(
+					xsltPathName);
+			if (stylesheet == null) {
+				throw new GenericSearchException("Error " + xsltPathName
+						+ " not found in classpath");
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = stylesheet.read(buf)) > -1) {
+				bytes.write(buf, 0, n);
+			}
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new GenericSearchException("Error " + xsltPathName
+					+ " not readable", e);
+		} finally {
+			if (stylesheet != null) {
+				try {
+					stylesheet.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private CachedTemplates compile(final String xsltPath,
+			final byte[] stylesheet, final URIResolver uriResolver)
+			throws GenericSearchException {
+		try {
+			TransformerFactory tfactory = TransformerFactory.newInstance();
+			if (uriResolver != null) {
+				tfactory.setURIResolver(uriResolver);
+			}
+			return new CachedTemplates(tfactory.newTemplates(new StreamSource(
+					new ByteArrayInputStream(stylesheet))), digest(stylesheet));
+		} catch (TransformerException e) {
+			throw new GenericSearchException("compile error xsltPath="
+					+ xsltPath + " :\n", e);
+		}
+	}
+
+	private static byte[] digest(final byte[] stylesheet) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(stylesheet);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private XsltSpec parseXsltSpec(final String indexDocXslt)
+			throws GenericSearchException {
+		String xsltName = indexDocXslt;
+		String[] params = new String[0];
+		int beginParams = indexDocXslt.indexOf("(");
+		if (beginParams > -1) {
+			xsltName = indexDocXslt.substring(0, beginParams).trim();
+			int endParams = indexDocXslt.indexOf(")");
+			if (endParams < beginParams)
+				throw new GenericSearchException(
+						"Format error (no ending ')') in indexDocXslt="
+								+ indexDocXslt + ": ");
+			StringTokenizer st = new StringTokenizer(indexDocXslt.substring(
+					beginParams + 1, endParams), ",");
+			params = new String[2 * st.countTokens()];
+			int i = 1;
+			while (st.hasMoreTokens()) {
+				String param = st.nextToken().trim();
+				if (param == null || param.length() < 1)
+					throw new GenericSearchException(
+							"Format error (empty param) in indexDocXslt="
+									+ indexDocXslt + " params[" + i + "]="
+									+ param);
+				int eq = param.indexOf("=");
+				if (eq < 0)
+					throw new GenericSearchException(
+							"Format error (no '=') in indexDocXslt="
+									+ indexDocXslt + " params[" + i + "]="
+									+ param);
+				String pname = param.substring(0, eq).trim();
+				String pvalue = param.substring(eq + 1).trim();
+				if (pname == null || pname.length() < 1)
+					throw new GenericSearchException(
+							"Format error (no param name) in indexDocXslt="
+									+ indexDocXslt + " params[" + i + "]="
+									+ param);
+				if (pvalue == null || pvalue.length() < 1)
+					throw new GenericSearchException(
+							"Format error (no param value) in indexDocXslt="
+									+ indexDocXslt + " params[" + i + "]="
+									+ param);
+				params[2 * i - 2] = pname;
+				params[2 * i++ - 1] = pvalue;
+			}
+		}
+		return new XsltSpec(xsltName, params);
+	}
+
+	/**
+	 * Stylesheet name and parameters of an indexDocXslt value.
+	 * 
+	 */
+	public static final class XsltSpec {
+
+		private final String xsltName;
+
+		private final String[] params;
+
+		private XsltSpec(final String xsltName, final String[] params) {
+			this.xsltName = xsltName;
+			this.params = params;
+		}
+
+		public String getXsltName() {
+			return xsltName;
+		}
+
+		/**
+		 * copy the parameters into given array.
+		 * 
+		 * @param target
+		 *            array of stylesheet parameters.
+		 * @param offset
+		 *            index of first parameter name in target.
+		 */
+		public void copyParams(final String[] target, final int offset) {
+			System.arraycopy(params, 0, target, offset, params.length);
+		}
+
+		/**
+		 * @return int number of parameter names and values.
+		 */
+		public int getParamsLength() {
+			return params.length;
+		}
+	}
+
+	/**
+	 * Cache key of xslt path and URIResolver class name.
+	 * 
+	 */
+	private static final class Key {
+
+		private final String path;
+
+		private final String resolverClass;
+
+		private Key(final String path, final URIResolver uriResolver) {
+			this.path = path;
+			this.resolverClass = uriResolver == null ? null : uriResolver
+					.getClass().getName();
+		}
+
+		public boolean equals(final Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return path.equals(other.path)
+					&& (resolverClass == null ? other.resolverClass == null
+							: resolverClass.equals(other.resolverClass));
+		}
+
+		public int hashCode() {
+			return path.hashCode() * 31
+					+ (resolverClass == null ? 0 : resolverClass.hashCode());
+		}
+	}
+
+	/**
+	 * Compiled stylesheet with the digest of its content.
+	 * 
+	 */
+	private static final class CachedTemplates {
+
+		private final Templates templates;
+
+		private final byte[] digest;
+
+		private volatile long lastCheck;
+
+		private CachedTemplates(final Templates templates, final byte[] digest) {
+			this.templates = templates;
+			this.digest = digest;
+			lastCheck = System.currentTimeMillis();
+		}
+	}
+
+}
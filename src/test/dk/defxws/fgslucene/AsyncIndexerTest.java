@@ -0,0 +1,115 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that an entry retried after a later entry of its PID was applied
+ * is skipped, so the entries of one PID are applied in order.
+ * 
+ */
+public class AsyncIndexerTest {
+
+	private File dir;
+
+	private IndexJournal journal;
+
+	private final AsyncIndexer.PidOrder order = new AsyncIndexer.PidOrder();
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("journal", "");
+		dir.delete();
+		journal = new IndexJournal(dir, 1024 * 1024, false);
+		journal.open();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		journal.close();
+		File[] files = dir.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			files[i].delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void skipsRetryAfterLaterEntryIsDone() throws Exception {
+		IndexJournal.Entry index = enqueue(AsyncIndexer.FROM_PID, "a:1");
+		// the index entry failed, its retry waits for the backoff
+		IndexJournal.Entry delete = enqueue(AsyncIndexer.DELETE_PID, "a:1");
+		assertFalse(order.isSuperseded(delete));
+		order.removed(delete);
+		// the retry must not index the deleted PID again
+		assertTrue(order.isSuperseded(index));
+		order.removed(index);
+		assertEquals(0, order.size());
+	}
+
+	@Test
+	public void appliesEntryAfterAllEarlierAreDone() throws Exception {
+		IndexJournal.Entry first = enqueue(AsyncIndexer.FROM_PID, "a:1");
+		assertFalse(order.isSuperseded(first));
+		order.removed(first);
+		IndexJournal.Entry second = enqueue(AsyncIndexer.DELETE_PID, "a:1");
+		assertFalse(order.isSuperseded(second));
+		order.removed(second);
+		assertEquals(0, order.size());
+	}
+
+	@Test
+	public void keepsPidsApart() throws Exception {
+		IndexJournal.Entry a = enqueue(AsyncIndexer.FROM_PID, "a:1");
+		IndexJournal.Entry b = enqueue(AsyncIndexer.FROM_PID, "a:2");
+		assertFalse(order.isSuperseded(a));
+		assertFalse(order.isSuperseded(b));
+		order.removed(b);
+		assertEquals(1, order.size());
+		order.removed(a);
+		assertEquals(0, order.size());
+	}
+
+	private IndexJournal.Entry enqueue(String action, String pid)
+			throws Exception {
+		IndexJournal.Entry entry = journal.append(action, pid, "repo", "");
+		order.enqueued(entry);
+		return entry;
+	}
+
+}
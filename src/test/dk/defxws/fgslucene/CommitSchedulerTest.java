@@ -0,0 +1,146 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+/**
+ * Checks the outcome of the tickets of pending writes when the IndexWriter
+ * is discarded. The indexes are only committed on request, so no commit
+ * runs in the background.
+ * 
+ */
+public class CommitSchedulerTest {
+
+	private static final AtomicInteger indexes = new AtomicInteger();
+
+	private final CommitScheduler scheduler = CommitScheduler.getInstance();
+
+	private String indexName;
+
+	@Before
+	public void setUp() {
+		indexName = "commitSchedulerTest" + indexes.incrementAndGet();
+		System.setProperty("fgslucene." + indexName + ".commit.maxDocs", "0");
+		System.setProperty("fgslucene." + indexName + ".commit.maxLatency",
+				"0");
+	}
+
+	@Test
+	public void sharesTicketUntilCommit() {
+		Future<Void> ticket = scheduler.register(indexName);
+		assertSame(ticket, scheduler.register(indexName));
+		assertEquals(2, scheduler.getPendingWrites(indexName));
+		assertFalse(ticket.isDone());
+		assertTrue(scheduler.isCommitOnRequest(indexName));
+	}
+
+	@Test
+	public void failsTicketOfLostWrites() throws Exception {
+		Future<Void> ticket = scheduler.register(indexName);
+		IOException error = new IOException("disk full");
+		scheduler.discard(indexName, error);
+		assertTrue(ticket.isDone());
+		try {
+			ticket.get();
+			fail("lost writes reported as committed");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof GenericSearchException);
+			assertSame(error, e.getCause().getCause());
+		}
+		assertEquals(0, scheduler.getPendingWrites(indexName));
+	}
+
+	@Test
+	public void failsWaiterOfLostWrites() throws Exception {
+		Future<Void> ticket = scheduler.register(indexName);
+		scheduler.discard(indexName, new IOException("disk full"));
+		try {
+			// the discarded ticket does not run its commit
+			scheduler.commit(indexName, ticket);
+			fail("lost writes reported as committed");
+		} catch (GenericSearchException e) {
+		}
+		try {
+			CommitScheduler.awaitCommit(indexName, ticket);
+			fail("lost writes reported as committed");
+		} catch (GenericSearchException e) {
+		}
+	}
+
+	@Test
+	public void completesTicketOnClose() throws Exception {
+		Future<Void> ticket = scheduler.register(indexName);
+		// closing the IndexWriter committed the writes
+		scheduler.discard(indexName, null);
+		assertTrue(ticket.isDone());
+		assertNull(ticket.get());
+		scheduler.checkNotDiscarded(indexName, 0);
+	}
+
+	@Test
+	public void startsNewTicketAfterDiscard() {
+		Future<Void> ticket = scheduler.register(indexName);
+		scheduler.discard(indexName, new IOException("disk full"));
+		Future<Void> next = scheduler.register(indexName);
+		assertNotSame(ticket, next);
+		assertFalse(next.isDone());
+		assertEquals(1, scheduler.getPendingWrites(indexName));
+	}
+
+	@Test
+	public void reportsDiscardToStartedCommit() throws Exception {
+		scheduler.checkNotDiscarded(indexName, 0);
+		scheduler.discard(indexName, new IOException("disk full"));
+		try {
+			// a commit of the writes before the discard
+			scheduler.checkNotDiscarded(indexName, 0);
+			fail("lost writes reported as committed");
+		} catch (GenericSearchException e) {
+		}
+		scheduler.checkNotDiscarded(indexName, 1);
+	}
+
+}
@@ -0,0 +1,201 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Pages through a multi-segment index with cursors and checks that the
+ * pages together are the hits of one search in the same order, with ties
+ * of the sort values and of the scores.
+ * 
+ */
+public class CursorCollectorTest {
+
+	private static final int DOCS = 40;
+
+	private RAMDirectory dir;
+
+	private IndexReader reader;
+
+	private IndexSearcher searcher;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new RAMDirectory();
+		IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_34,
+				new WhitespaceAnalyzer(Version.LUCENE_34));
+		// several segments, so docBase is not always 0
+		config.setMaxBufferedDocs(7);
+		config.setMergePolicy(NoMergePolicy.NO_COMPOUND_FILES);
+		IndexWriter writer = new IndexWriter(dir, config);
+		for (int i = 0; i < DOCS; i++) {
+			Document doc = new Document();
+			doc.add(new Field("title", "t" + (i % 7), Field.Store.YES,
+					Field.Index.NOT_ANALYZED));
+			doc.add(new Field("n", Integer.toString(i % 5), Field.Store.YES,
+					Field.Index.NOT_ANALYZED));
+			StringBuilder body = new StringBuilder();
+			for (int j = 0; j <= i % 4; j++) {
+				body.append("apple ");
+			}
+			if (i % 3 == 0) {
+				body.append("pear");
+			}
+			doc.add(new Field("body", body.toString(), Field.Store.NO,
+					Field.Index.ANALYZED));
+			writer.addDocument(doc);
+		}
+		writer.close();
+		reader = IndexReader.open(dir);
+		searcher = new IndexSearcher(reader);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		searcher.close();
+		reader.close();
+		dir.close();
+	}
+
+	@Test
+	public void pagesByScore() throws Exception {
+		BooleanQuery query = new BooleanQuery();
+		query.add(new TermQuery(new Term("body", "apple")),
+				BooleanClause.Occur.SHOULD);
+		query.add(new TermQuery(new Term("body", "pear")),
+				BooleanClause.Occur.SHOULD);
+		assertPages(query, new SortField[0], 6);
+		assertPages(query, new SortField[0], 1);
+	}
+
+	@Test
+	public void pagesByStringAndInt() throws Exception {
+		assertPages(new TermQuery(new Term("body", "apple")),
+				new SortField[] { new SortField("title", SortField.STRING),
+						new SortField("n", SortField.INT, true) }, 6);
+	}
+
+	@Test
+	public void pagesByReverseString() throws Exception {
+		assertPages(new TermQuery(new Term("body", "apple")),
+				new SortField[] { new SortField("title", SortField.STRING,
+						true) }, 4);
+	}
+
+	@Test
+	public void pagesByScoreField() throws Exception {
+		assertPages(new TermQuery(new Term("body", "apple")),
+				new SortField[] { SortField.FIELD_SCORE,
+						new SortField("n", SortField.INT) }, 5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsCursorOfOtherSort() throws Exception {
+		new CursorCollector(newCollector(new SortField[] { new SortField(
+				"title", SortField.STRING) }, 10), new SortField[] {
+				new SortField("title", SortField.STRING) }, SearchCursor
+				.after(new ScoreDoc(1, 1f)));
+	}
+
+	/**
+	 * pages through the hits of query as Statement does and compares them
+	 * with the hits of a single search.
+	 */
+	private void assertPages(Query query, SortField[] sortFields, int pageSize)
+			throws IOException, Exception {
+		TopDocsCollector all = newCollector(sortFields, DOCS);
+		searcher.search(query, all);
+		ScoreDoc[] expected = all.topDocs().scoreDocs;
+		List<Integer> paged = new ArrayList<Integer>();
+		String cursor = null;
+		// a cursor which does not advance would repeat its page forever
+		for (int pages = 0; pages <= DOCS; pages++) {
+			TopDocsCollector page = newCollector(sortFields, pageSize);
+			Collector collector = page;
+			if (cursor != null) {
+				collector = new CursorCollector(page, sortFields, SearchCursor
+						.parse(cursor));
+			}
+			searcher.search(query, collector);
+			ScoreDoc[] hits = page.topDocs().scoreDocs;
+			if (hits.length == 0) {
+				break;
+			}
+			for (int i = 0; i < hits.length; i++) {
+				paged.add(Integer.valueOf(hits[i].doc));
+			}
+			cursor = SearchCursor.after(hits[hits.length - 1]).toString();
+		}
+		assertEquals(expected.length, paged.size());
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("hit " + i, expected[i].doc, paged.get(i).intValue());
+		}
+	}
+
+	private static TopDocsCollector newCollector(SortField[] sortFields,
+			int numHits) throws IOException {
+		if (sortFields.length == 0) {
+			return TopScoreDocCollector.create(numHits, false);
+		}
+		return TopFieldCollector.create(new Sort(sortFields), numHits, true,
+				true, false, false);
+	}
+
+}
@@ -0,0 +1,194 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Replays the journal after acknowledging only the entries which were
+ * committed, as AsyncIndexer does when some of them failed.
+ * 
+ */
+public class IndexJournalTest {
+
+	private File dir;
+
+	private IndexJournal journal;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("journal", "");
+		dir.delete();
+		journal = open(1024 * 1024);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		journal.close();
+		delete(dir);
+	}
+
+	@Test
+	public void replaysUnacknowledgedEntries() throws Exception {
+		journal.append("fromPid", Arrays.asList("a:1", "a:2"), "repo",
+				"xslt(p=v)");
+		journal.append("deletePid", "a:3\tx\\y\n", null, null);
+		journal.acknowledge(1);
+		List<IndexJournal.Entry> entries = reopen();
+		assertEquals(2, entries.size());
+		assertEntry(entries.get(0), 2, "fromPid", "a:2", "repo", "xslt(p=v)");
+		assertEntry(entries.get(1), 3, "deletePid", "a:3\tx\\y\n", "", "");
+		assertEquals(3, journal.getLastSeq());
+		assertEquals(4, journal.append("fromPid", "a:4", "repo", "").getSeq());
+	}
+
+	@Test
+	public void replaysFromFirstFailedEntry() throws Exception {
+		List<IndexJournal.Entry> appended = journal.append("fromPid", Arrays
+				.asList("a:1", "a:2", "a:3", "a:4"), "repo", "");
+		// a:2 failed and waits for its retry, only a:1 is acknowledged
+		journal.acknowledge(1);
+		List<IndexJournal.Entry> entries = reopen();
+		assertEquals(3, entries.size());
+		assertEquals("a:2", entries.get(0).getPid());
+		// a:2 failed too often, the others were committed
+		journal.deadLetter(appended.get(1));
+		journal.acknowledge(4);
+		assertEquals(0, reopen().size());
+		List<IndexJournal.Entry> dead = journal.getDeadLetters();
+		assertEquals(1, dead.size());
+		assertEntry(dead.get(0), 2, "fromPid", "a:2", "repo", "");
+		assertEquals(4, journal.getAckSeq());
+		assertEquals(5, journal.append("fromPid", "a:5", "repo", "").getSeq());
+	}
+
+	@Test
+	public void ignoresOlderAcknowledgement() throws Exception {
+		journal.append("fromPid", Arrays.asList("a:1", "a:2"), "repo", "");
+		journal.acknowledge(2);
+		journal.acknowledge(1);
+		assertEquals(2, journal.getAckSeq());
+		assertEquals(0, reopen().size());
+	}
+
+	@Test
+	public void skipsTornEntry() throws Exception {
+		journal.append("fromPid", Arrays.asList("a:1", "a:2"), "repo", "");
+		journal.close();
+		File[] segments = dir.listFiles();
+		Arrays.sort(segments);
+		FileOutputStream out = new FileOutputStream(
+				segments[segments.length - 1], true);
+		out.write("3\t1\tfromP".getBytes("UTF-8"));
+		out.close();
+		List<IndexJournal.Entry> entries = reopen();
+		assertEquals(2, entries.size());
+		assertEquals("a:2", entries.get(1).getPid());
+		// the torn entry is never continued
+		journal.append("fromPid", "a:3", "repo", "");
+		entries = reopen();
+		assertEquals(3, entries.size());
+		assertEntry(entries.get(2), 3, "fromPid", "a:3", "repo", "");
+	}
+
+	@Test
+	public void skipsTornEntryWithAllFields() throws Exception {
+		journal.append("fromPid", "a:1", "repo", "");
+		journal.close();
+		File[] segments = dir.listFiles();
+		Arrays.sort(segments);
+		FileOutputStream out = new FileOutputStream(
+				segments[segments.length - 1], true);
+		// the value of the last field is cut off, the '\n' is missing
+		out.write("2\t1\tfromPid\ta:2\trepo\tdemo".getBytes("UTF-8"));
+		out.close();
+		List<IndexJournal.Entry> entries = reopen();
+		assertEquals(1, entries.size());
+		assertEquals("a:1", entries.get(0).getPid());
+	}
+
+	@Test
+	public void deletesAcknowledgedSegments() throws Exception {
+		journal.close();
+		// one entry per segment
+		journal = open(1);
+		for (int i = 1; i <= 10; i++) {
+			journal.append("fromPid", "a:" + i, "repo", "");
+		}
+		assertEquals(10, journal.getSegmentCount());
+		journal.acknowledge(5);
+		assertEquals(5, journal.getSegmentCount());
+		journal.acknowledge(10);
+		assertEquals(1, journal.getSegmentCount());
+		assertEquals(0, reopen().size());
+	}
+
+	private IndexJournal open(long segmentBytes) throws IOException {
+		IndexJournal j = new IndexJournal(dir, segmentBytes, true);
+		j.open();
+		return j;
+	}
+
+	private List<IndexJournal.Entry> reopen() throws IOException {
+		journal.close();
+		journal = new IndexJournal(dir, 1024 * 1024, true);
+		return journal.open();
+	}
+
+	private static void assertEntry(IndexJournal.Entry entry, long seq,
+			String action, String pid, String repositoryName,
+			String indexDocXslt) {
+		assertEquals(seq, entry.getSeq());
+		assertEquals(action, entry.getAction());
+		assertEquals(pid, entry.getPid());
+		assertEquals(repositoryName, entry.getRepositoryName());
+		assertEquals(indexDocXslt, entry.getIndexDocXslt());
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				delete(files[i]);
+			}
+		}
+		file.delete();
+	}
+
+}
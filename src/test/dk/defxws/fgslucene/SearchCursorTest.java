@@ -0,0 +1,90 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.junit.Test;
+
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+public class SearchCursorTest {
+
+	@Test
+	public void roundTripsScoreDoc() throws Exception {
+		SearchCursor cursor = SearchCursor.parse(SearchCursor.after(
+				new ScoreDoc(42, 0.3f)).toString());
+		assertEquals(42, cursor.getDoc());
+		assertEquals(Float.floatToIntBits(0.3f), Float
+				.floatToIntBits(cursor.getScore()));
+		assertEquals(0, cursor.getValues().length);
+	}
+
+	@Test
+	public void roundTripsSortValues() throws Exception {
+		Object[] values = new Object[] { "a|b\\c", "", null,
+				Integer.valueOf(-7), Float.valueOf(Float.NaN),
+				Long.valueOf(Long.MIN_VALUE), Double.valueOf(-0.0d),
+				Double.valueOf(Double.MAX_VALUE), Short.valueOf((short) 3),
+				Byte.valueOf((byte) -1), "\u00e6\u00f8\u00e5 \u4e2d" };
+		SearchCursor cursor = SearchCursor.parse(SearchCursor.after(
+				new FieldDoc(Integer.MAX_VALUE, Float.NaN, values)).toString());
+		assertEquals(Integer.MAX_VALUE, cursor.getDoc());
+		assertEquals(Float.floatToIntBits(Float.NaN), Float
+				.floatToIntBits(cursor.getScore()));
+		assertArrayEquals(values, cursor.getValues());
+	}
+
+	@Test
+	public void roundTripsNegativeScore() throws Exception {
+		SearchCursor cursor = SearchCursor.parse(SearchCursor.after(
+				new ScoreDoc(0, -1.5f)).toString());
+		assertEquals(Float.floatToIntBits(-1.5f), Float
+				.floatToIntBits(cursor.getScore()));
+	}
+
+	@Test
+	public void rejectsMalformedCursors() {
+		String valid = SearchCursor.after(new ScoreDoc(1, 1f)).toString();
+		String[] malformed = new String[] { "", "abc", "zz",
+				valid.substring(0, valid.length() - 2), "63327c317c" };
+		for (int i = 0; i < malformed.length; i++) {
+			try {
+				SearchCursor.parse(malformed[i]);
+				fail("parsed malformed cursor '" + malformed[i] + "'");
+			} catch (GenericSearchException e) {
+			}
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at license/ESCIDOC.LICENSE
+ * or http://www.escidoc.de/license.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at license/ESCIDOC.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright 2006-2008 Fachinformationszentrum Karlsruhe Gesellschaft
+ * fuer wissenschaftlich-technische Information mbH and Max-Planck-
+ * Gesellschaft zur Foerderung der Wissenschaft e.V.  
+ * All rights reserved.  Use is subject to license terms.
+ */
+package dk.defxws.fgslucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SnippetFormatterTest {
+
+	private static final String B = SnippetHighlighter.BEGIN_MARK;
+
+	private static final String E = SnippetHighlighter.END_MARK;
+
+	private static final String SEP = SnippetHighlighter.SEPARATOR;
+
+	private final SnippetFormatter formatter = new SnippetFormatter("<b>",
+			"</b>");
+
+	private String format(String snippets) {
+		StringBuffer out = new StringBuffer("<field>");
+		formatter.appendSnippets(snippets, out);
+		return out.substring("<field>".length());
+	}
+
+	@Test
+	public void escapesTextAndReplacesMarks() {
+		assertEquals("a &lt;x&gt; &amp; &quot;y&quot; &apos;z&apos; <b>hit</b> c",
+				format("a <x> & \"y\" 'z' " + B + "hit" + E + " c"));
+	}
+
+	@Test
+	public void keepsExclamationMarks() {
+		assertEquals("!!! <b>hit</b>! !!!SNIPPET", format("!!! " + B + "hit"
+				+ E + "! !!!SNIPPET"));
+	}
+
+	@Test
+	public void dropsTruncatedEntity() {
+		assertEquals("tom", format("tom &am"));
+		assertEquals("tom &amp;amp; jerry", format("tom &amp; jerry"));
+		assertEquals("tom &amp;amp;", format("tom &amp;"));
+	}
+
+	@Test
+	public void dropsTruncatedEntityOfEachFragment() {
+		assertEquals("<b>a</b> b" + SEP + "c <b>d</b>", format(B + "a" + E
+				+ " b &l" + SEP + "c " + B + "d" + E + " &#x2"));
+	}
+
+	@Test
+	public void keepsSingleWordFragment() {
+		assertEquals("&amp;am", format("&am"));
+	}
+
+	@Test
+	public void appendsNothingForNoSnippets() {
+		StringBuffer out = new StringBuffer("x");
+		assertFalse(formatter.appendSnippets("", out));
+		assertFalse(formatter.appendSnippets(null, out));
+		assertEquals("x", out.toString());
+		assertTrue(formatter.appendSnippets(B + "y" + E, out));
+		assertEquals("x<b>y</b>", out.toString());
+	}
+
+	@Test
+	public void escapesRange() {
+		StringBuffer out = new StringBuffer();
+		SnippetFormatter.appendEscaped("a<b>&c", 1, 5, out);
+		assertEquals("&lt;b&gt;&amp;", out.toString());
+	}
+
+}